@@ -66,13 +66,22 @@ public class IpCameraBindingConstants {
     public static final String CONFIG_FFMPEG_MOTION_INPUT = "FFMPEG_MOTION_INPUT";
     public static final String CONFIG_GIF_PREROLL = "GIF_PREROLL";
     public static final String CONFIG_GIF_POSTROLL = "GIF_POSTROLL";
+    public static final String CONFIG_STATE_UPDATE_MS = "STATE_UPDATE_MS";
+    public static final String CONFIG_IMAGE_MIN_INTERVAL_MS = "IMAGE_MIN_INTERVAL_MS";
+    public static final String CONFIG_MP4_PREROLL = "MP4_PREROLL";
+    public static final String CONFIG_SNAPSHOT_MOTION = "SNAPSHOT_MOTION";
+    public static final String CONFIG_MOTION_MASK = "MOTION_MASK";
     public static final String CONFIG_FIRST_CAM = "FIRST_CAM";
     public static final String CONFIG_SECOND_CAM = "SECOND_CAM";
     public static final String CONFIG_THIRD_CAM = "THIRD_CAM";
     public static final String CONFIG_FORTH_CAM = "FORTH_CAM";
     public static final String CONFIG_MOTION_CHANGES_ORDER = "MOTION_CHANGES_ORDER";
+    public static final String CONFIG_MOSAIC = "MOSAIC";
     public static final String CONFIG_PTZ_CONTINUOUS = "PTZ_CONTINUOUS";
 
+    // Thing property listing the running ffmpeg processes with their pid, restarts and last error.
+    public static final String PROPERTY_FFMPEG_HEALTH = "ffmpegHealth";
+
     // List of all Channel ids
     public static final String CHANNEL_UPDATE_IMAGE_NOW = "updateImageNow";
     public static final String CHANNEL_UPDATE_GIF = "updateGif";
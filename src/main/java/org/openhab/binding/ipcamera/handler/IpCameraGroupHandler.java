@@ -19,7 +19,6 @@ import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.nio.file.Files;
@@ -29,7 +28,6 @@ import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -45,20 +43,22 @@ import org.eclipse.smarthome.core.thing.ThingStatus;
 import org.eclipse.smarthome.core.thing.ThingTypeUID;
 import org.eclipse.smarthome.core.thing.binding.BaseThingHandler;
 import org.eclipse.smarthome.core.types.Command;
+import org.openhab.binding.ipcamera.internal.GroupMosaic;
+import org.openhab.binding.ipcamera.internal.IpCameraEventLoops;
+import org.openhab.binding.ipcamera.internal.MjpegFanout;
+import org.openhab.binding.ipcamera.internal.MjpegFramer;
+import org.openhab.binding.ipcamera.internal.SharedStreamServer;
+import org.openhab.binding.ipcamera.internal.SnapshotFrame;
 import org.openhab.binding.ipcamera.internal.StreamServerGroupHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelInitializer;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.http.HttpServerCodec;
-import io.netty.handler.stream.ChunkedWriteHandler;
-import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
 
 /**
  * The {@link IpCameraGroupHandler} is responsible for finding cameras that are part of this group and displaying a
@@ -72,14 +72,17 @@ public class IpCameraGroupHandler extends BaseThingHandler {
     private final Logger logger = LoggerFactory.getLogger(getClass());
     public static final Set<ThingTypeUID> SUPPORTED_THING_TYPES = new HashSet<ThingTypeUID>(
             Arrays.asList(THING_TYPE_GROUPDISPLAY));
+    // How often the mosaic is made while it is being watched.
+    private static final int MOSAIC_REFRESH_MS = 1000;
+    // The mosaic stops being made this long after the last ipcamera.jpg request when no streams are open.
+    private static final int MOSAIC_IDLE_MS = 10000;
     private Configuration config;
     BigDecimal pollTimeInSeconds = new BigDecimal(2);
     public ArrayList<IpCameraHandler> cameraOrder = new ArrayList<IpCameraHandler>(2);
-    private EventLoopGroup serversLoopGroup = new NioEventLoopGroup();
-    private final ScheduledExecutorService pollCameraGroup = Executors.newSingleThreadScheduledExecutor();
+    private final IpCameraEventLoops eventLoops;
+    private final ScheduledExecutorService pollCameraGroup;
     private @Nullable ScheduledFuture<?> pollCameraGroupJob = null;
-    private @Nullable ServerBootstrap serverBootstrap;
-    private @Nullable ChannelFuture serverFuture = null;
+    private boolean streamServerStarted = false;
     public String hostIp = "0.0.0.0";
     boolean motionChangesOrder = true;
     public int serverPort = 0;
@@ -91,12 +94,68 @@ public class IpCameraGroupHandler extends BaseThingHandler {
     BigDecimal numberOfFiles = new BigDecimal(1);
     int mediaSequence = 1;
     int discontinuitySequence = 0;
+    private final GroupMosaic mosaic;
+    public boolean mosaicEnabled = false;
+    private volatile long mosaicRequested = 0;
+    private @Nullable ScheduledFuture<?> mosaicJob = null;
+    final ChannelGroup mosaicMjpegChannelGroup = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
 
-    public IpCameraGroupHandler(Thing thing) {
+    public IpCameraGroupHandler(Thing thing, IpCameraEventLoops eventLoops) {
         super(thing);
         config = thing.getConfiguration();
+        this.eventLoops = eventLoops;
+        pollCameraGroup = eventLoops.getScheduler();
+        mosaic = new GroupMosaic(eventLoops.getImageExecutor(), new GroupMosaic.Listener() {
+            @Override
+            public void mosaicReady(SnapshotFrame frame) {
+                ByteBuf jpeg = frame.retainedSlice();
+                if (jpeg != null) {
+                    MjpegFanout.sendFrame(mosaicMjpegChannelGroup, MjpegFramer.frame(jpeg));
+                }
+            }
+        });
+    }
+
+    // The caller must release the frame when done, it is empty until the first mosaic has been made.
+    public SnapshotFrame acquireMosaic() {
+        if (mosaicRequested == 0) {
+            pollCameraGroup.execute(refreshMosaic);
+        }
+        mosaicRequested = System.currentTimeMillis();
+        return mosaic.acquireMosaic();
+    }
+
+    public void setupMosaicStreaming(boolean stream, ChannelHandlerContext ctx) {
+        if (stream) {
+            mosaicMjpegChannelGroup.add(ctx.channel());
+            SnapshotFrame frame = mosaic.acquireMosaic();
+            ByteBuf jpeg = frame.retainedSlice();
+            frame.release();
+            if (jpeg != null) {
+                MjpegFanout.sendFrame(mosaicMjpegChannelGroup, MjpegFramer.frame(jpeg));
+            }
+        } else {
+            mosaicMjpegChannelGroup.remove(ctx.channel());
+        }
     }
 
+    Runnable refreshMosaic = new Runnable() {
+        @Override
+        public void run() {
+            if (mosaicMjpegChannelGroup.isEmpty() && System.currentTimeMillis() - mosaicRequested > MOSAIC_IDLE_MS) {
+                mosaicRequested = 0;
+                return;
+            }
+            for (IpCameraHandler handler : cameraOrder) {
+                // Same as a cameras own ipcamera.jpg, the mosaic uses the snapshot from the request before.
+                if (!handler.snapshotPolling && !handler.snapshotUri.isEmpty()) {
+                    handler.sendHttpGET(handler.snapshotUri);
+                }
+            }
+            mosaic.refresh(cameraOrder);
+        }
+    };
+
     // @SuppressWarnings("null")
     public String getWhiteList() {
         return (config.get(CONFIG_IP_WHITELIST) == null) ? "" : config.get(CONFIG_IP_WHITELIST).toString();
@@ -212,41 +271,34 @@ public class IpCameraGroupHandler extends BaseThingHandler {
         return ipAddress;
     }
 
-    @SuppressWarnings("null")
+    // Base of the urls this group serves, the shared stream server routes them by the things ID.
+    public String getServerUrl(String host) {
+        return "http://" + host + ":" + serverPort + "/" + getThing().getUID().getId();
+    }
+
     public void startStreamServer(boolean start) {
         if (!start) {
-            serversLoopGroup.shutdownGracefully(8, 8, TimeUnit.SECONDS);
-            serverBootstrap = null;
+            if (streamServerStarted) {
+                eventLoops.stopStreamServer(serverPort, getThing().getUID().getId());
+                streamServerStarted = false;
+            }
         } else {
-            if (serverBootstrap == null) {
+            if (!streamServerStarted) {
                 hostIp = getLocalIpAddress();
                 try {
-                    serversLoopGroup = new NioEventLoopGroup();
-                    serverBootstrap = new ServerBootstrap();
-                    serverBootstrap.group(serversLoopGroup);
-                    serverBootstrap.channel(NioServerSocketChannel.class);
-                    // IP "0.0.0.0" will bind the server to all network connections//
-                    serverBootstrap.localAddress(new InetSocketAddress("0.0.0.0", serverPort));
-                    serverBootstrap.childHandler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        protected void initChannel(SocketChannel socketChannel) throws Exception {
-                            socketChannel.pipeline().addLast("idleStateHandler", new IdleStateHandler(0, 25, 0));
-                            socketChannel.pipeline().addLast("HttpServerCodec", new HttpServerCodec());
-                            socketChannel.pipeline().addLast("ChunkedWriteHandler", new ChunkedWriteHandler());
-                            socketChannel.pipeline().addLast("streamServerHandler",
-                                    new StreamServerGroupHandler(getHandle()));
-                        }
-                    });
-                    serverFuture = serverBootstrap.bind().sync();
-                    serverFuture.await(4000);
-                    logger.info("IpCamera file server for a group of cameras has started on port {} for all NIC's.",
+                    eventLoops.startStreamServer(serverPort, getThing().getUID().getId(),
+                            new SharedStreamServer.HandlerFactory() {
+                                @Override
+                                public ChannelHandler newStreamServerHandler() {
+                                    return new StreamServerGroupHandler(getHandle());
+                                }
+                            });
+                    streamServerStarted = true;
+                    logger.info("IpCamera file server for a group of cameras is serving on port {} for all NIC's.",
                             serverPort);
-                    updateState(CHANNEL_STREAM_URL,
-                            new StringType("http://" + hostIp + ":" + serverPort + "/ipcamera.mjpeg"));
-                    updateState(CHANNEL_HLS_URL,
-                            new StringType("http://" + hostIp + ":" + serverPort + "/ipcamera.m3u8"));
-                    updateState(CHANNEL_IMAGE_URL,
-                            new StringType("http://" + hostIp + ":" + serverPort + "/ipcamera.jpg"));
+                    updateState(CHANNEL_STREAM_URL, new StringType(getServerUrl(hostIp) + "/ipcamera.mjpeg"));
+                    updateState(CHANNEL_HLS_URL, new StringType(getServerUrl(hostIp) + "/ipcamera.m3u8"));
+                    updateState(CHANNEL_IMAGE_URL, new StringType(getServerUrl(hostIp) + "/ipcamera.jpg"));
                 } catch (Exception e) {
                     logger.error(
                             "Exception occured when starting the streaming server. Try changing the SERVER_PORT to another number: {}",
@@ -385,6 +437,7 @@ public class IpCameraGroupHandler extends BaseThingHandler {
         serverPort = Integer.parseInt(config.get(CONFIG_SERVER_PORT).toString());
         pollTimeInSeconds = new BigDecimal(config.get(CONFIG_POLL_CAMERA_MS).toString());
         motionChangesOrder = (boolean) config.get(CONFIG_MOTION_CHANGES_ORDER);
+        mosaicEnabled = (config.get(CONFIG_MOSAIC) == null) ? false : (boolean) config.get(CONFIG_MOSAIC);
         pollTimeInSeconds = pollTimeInSeconds.divide(new BigDecimal(1000), 1, RoundingMode.HALF_UP);
         if (serverPort == -1) {
             logger.warn("The SERVER_PORT = -1 which disables a lot of features. See readme for more info.");
@@ -399,6 +452,10 @@ public class IpCameraGroupHandler extends BaseThingHandler {
         updateStatus(ThingStatus.ONLINE);
         pollCameraGroupJob = pollCameraGroup.scheduleAtFixedRate(pollingCameraGroup, 10000,
                 Integer.parseInt(config.get(CONFIG_POLL_CAMERA_MS).toString()), TimeUnit.MILLISECONDS);
+        if (mosaicEnabled) {
+            mosaicJob = pollCameraGroup.scheduleWithFixedDelay(refreshMosaic, MOSAIC_REFRESH_MS, MOSAIC_REFRESH_MS,
+                    TimeUnit.MILLISECONDS);
+        }
     }
 
     @Override
@@ -409,6 +466,13 @@ public class IpCameraGroupHandler extends BaseThingHandler {
             pollCameraGroupJob.cancel(true);
             pollCameraGroupJob = null;
         }
+        if (mosaicJob != null) {
+            mosaicJob.cancel(true);
+            mosaicJob = null;
+        }
+        mosaicMjpegChannelGroup.close();
+        mosaic.clear();
+        mosaicRequested = 0;
         cameraOrder.clear();
     }
 }
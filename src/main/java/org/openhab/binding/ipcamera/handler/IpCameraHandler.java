@@ -16,10 +16,6 @@ package org.openhab.binding.ipcamera.handler;
 import static org.openhab.binding.ipcamera.IpCameraBindingConstants.*;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
 import java.net.InetAddress;
@@ -29,18 +25,19 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
@@ -48,7 +45,6 @@ import org.eclipse.smarthome.config.core.Configuration;
 import org.eclipse.smarthome.core.library.types.IncreaseDecreaseType;
 import org.eclipse.smarthome.core.library.types.OnOffType;
 import org.eclipse.smarthome.core.library.types.PercentType;
-import org.eclipse.smarthome.core.library.types.RawType;
 import org.eclipse.smarthome.core.library.types.StringType;
 import org.eclipse.smarthome.core.thing.ChannelUID;
 import org.eclipse.smarthome.core.thing.Thing;
@@ -59,37 +55,56 @@ import org.eclipse.smarthome.core.thing.binding.BaseThingHandler;
 import org.eclipse.smarthome.core.types.Command;
 import org.eclipse.smarthome.core.types.State;
 import org.openhab.binding.ipcamera.internal.AmcrestHandler;
+import org.openhab.binding.ipcamera.internal.ChannelStatePublisher;
+import org.openhab.binding.ipcamera.internal.ChannelTracking;
+import org.openhab.binding.ipcamera.internal.ChannelTracking.ChannelState;
+import org.openhab.binding.ipcamera.internal.DahuaEvent;
+import org.openhab.binding.ipcamera.internal.DahuaEventDecoder;
 import org.openhab.binding.ipcamera.internal.DahuaHandler;
+import org.openhab.binding.ipcamera.internal.DigestSession;
 import org.openhab.binding.ipcamera.internal.DoorBirdHandler;
 import org.openhab.binding.ipcamera.internal.Ffmpeg;
+import org.openhab.binding.ipcamera.internal.FfmpegSupervisor;
 import org.openhab.binding.ipcamera.internal.FoscamHandler;
+import org.openhab.binding.ipcamera.internal.HikvisionEvent;
+import org.openhab.binding.ipcamera.internal.HikvisionEventDecoder;
 import org.openhab.binding.ipcamera.internal.HikvisionHandler;
+import org.openhab.binding.ipcamera.internal.HlsPrerollFeed;
+import org.openhab.binding.ipcamera.internal.HlsSegmentCache;
 import org.openhab.binding.ipcamera.internal.HttpOnlyHandler;
+import org.openhab.binding.ipcamera.internal.ImageChannelPublisher;
 import org.openhab.binding.ipcamera.internal.InstarHandler;
+import org.openhab.binding.ipcamera.internal.IpCameraEventLoops;
+import org.openhab.binding.ipcamera.internal.MjpegFanout;
+import org.openhab.binding.ipcamera.internal.MjpegFramer;
 import org.openhab.binding.ipcamera.internal.MyNettyAuthHandler;
+import org.openhab.binding.ipcamera.internal.NvrEventHub;
+import org.openhab.binding.ipcamera.internal.SharedStreamServer;
+import org.openhab.binding.ipcamera.internal.SnapshotFrame;
+import org.openhab.binding.ipcamera.internal.SnapshotMotionDetector;
+import org.openhab.binding.ipcamera.internal.SnapshotRingBuffer;
 import org.openhab.binding.ipcamera.internal.StreamServerHandler;
+import org.openhab.binding.ipcamera.internal.ThumbnailCache;
 import org.openhab.binding.ipcamera.onvif.OnvifConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.netty.bootstrap.Bootstrap;
-import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
+import io.netty.channel.EventLoop;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.base64.Base64;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
 import io.netty.handler.codec.http.DefaultHttpResponse;
@@ -100,12 +115,12 @@ import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpMessage;
 import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
-import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
-import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.timeout.IdleStateHandler;
@@ -122,6 +137,8 @@ import io.netty.util.concurrent.GlobalEventExecutor;
 
 @NonNullByDefault
 public class IpCameraHandler extends BaseThingHandler {
+    // A snapshot still arriving after this long is treated as stuck and the next poll opens a new connection.
+    private static final long SNAPSHOT_IN_FLIGHT_MS = 4000;
     public static final Set<ThingTypeUID> SUPPORTED_THING_TYPES = new HashSet<ThingTypeUID>(
             Arrays.asList(THING_TYPE_ONVIF, THING_TYPE_HTTPONLY, THING_TYPE_AMCREST, THING_TYPE_DAHUA,
                     THING_TYPE_INSTAR, THING_TYPE_FOSCAM, THING_TYPE_DOORBIRD, THING_TYPE_HIKVISION));
@@ -129,10 +146,10 @@ public class IpCameraHandler extends BaseThingHandler {
     public static ArrayList<IpCameraGroupHandler> listOfGroupHandlers = new ArrayList<IpCameraGroupHandler>(0);
     public static ArrayList<String> listOfOnlineCameraUID = new ArrayList<String>(1);
     public final Logger logger = LoggerFactory.getLogger(getClass());
-    private ScheduledExecutorService cameraConnection = Executors.newScheduledThreadPool(1);
-    private ScheduledExecutorService scheduledMovePTZ = Executors.newScheduledThreadPool(1);
-    private ScheduledExecutorService pollCamera = Executors.newScheduledThreadPool(1);
-    private ScheduledExecutorService snapshot = Executors.newScheduledThreadPool(1);
+    // Threads are shared by all cameras, each camera keeps its connections on one event loop.
+    private final IpCameraEventLoops eventLoops;
+    private final EventLoop cameraEventLoop;
+    private final ScheduledExecutorService sharedScheduler;
     public Configuration config;
 
     // ChannelGroup is thread safe
@@ -140,11 +157,16 @@ public class IpCameraHandler extends BaseThingHandler {
     final ChannelGroup snapshotMjpegChannelGroup = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
     final ChannelGroup autoSnapshotMjpegChannelGroup = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
     public @Nullable Ffmpeg ffmpegHLS = null;
+    public @Nullable HlsSegmentCache hlsSegmentCache = null;
     public @Nullable Ffmpeg ffmpegRecord = null;
     public @Nullable Ffmpeg ffmpegGIF = null;
     public @Nullable Ffmpeg ffmpegRtspHelper = null;
     public @Nullable Ffmpeg ffmpegMjpeg = null;
     public @Nullable Ffmpeg ffmpegSnapshot = null;
+    // HLS and RTSPHELPER share one ffmpeg process and MJPEG and SNAPSHOT share another, each with its own RTSP
+    // connection. MJPEG and snapshots come and go with the viewers, so they are kept apart from HLS and the alarms.
+    private final FfmpegSupervisor ffmpegSupervisor;
+    private final FfmpegSupervisor hlsSupervisor;
     public boolean streamingAutoFps = false;
     boolean motionDetected = false;
 
@@ -152,25 +174,27 @@ public class IpCameraHandler extends BaseThingHandler {
     private @Nullable ScheduledFuture<?> pollCameraJob = null;
     private @Nullable ScheduledFuture<?> snapshotJob = null;
     private @Nullable Bootstrap mainBootstrap;
-    private @Nullable ServerBootstrap serverBootstrap;
     private String username = "";
     private String password = "";
     private int selectedMediaProfile = 0;
 
-    private EventLoopGroup mainEventLoopGroup = new NioEventLoopGroup();
-    private EventLoopGroup serversLoopGroup = new NioEventLoopGroup();
     private FullHttpRequest putRequestWithBody = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, new HttpMethod("PUT"),
             "");
     private String nvrChannel = "";
     private String gifFilename = "ipcamera";
     private String gifHistory = "";
     private String mp4History = "";
+    private String ffmpegHealth = "";
     public int gifHistoryLength = 0;
     public int mp4HistoryLength = 0;
     private String mp4Filename = "ipcamera";
     int mp4RecordTime = 0;
     int mp4Preroll = 0;
-    private LinkedList<byte[]> fifoSnapshotBuffer = new LinkedList<byte[]>();
+    // The last preroll + postroll snapshots for GIF creation, sized in initialize().
+    private SnapshotRingBuffer snapshotHistory = new SnapshotRingBuffer(1);
+    // The snapshots the last GIF was made from, served as /snapshotN.jpg from ram instead of files.
+    private List<SnapshotFrame> gifSnapshots = new ArrayList<SnapshotFrame>(0);
+    private final Object gifSnapshotsLock = new Object();
     private int preroll, postroll, snapCount = 0;
     private boolean updateImageChannel = false;
     private boolean updateAutoFps = false;
@@ -178,25 +202,37 @@ public class IpCameraHandler extends BaseThingHandler {
     public String hostIp = "0.0.0.0";
     private String ffmpegOutputFolder = "";
 
-    public ArrayList<String> listOfRequests = new ArrayList<String>(18);
-    public ArrayList<Channel> listOfChannels = new ArrayList<Channel>(18);
-    // Status can be -2=storing a reply, -1=closed, 0=closing (do not re-use
-    // channel), 1=open, 2=open and ok to reuse
-    public ArrayList<Byte> listOfChStatus = new ArrayList<Byte>(18);
-    public ArrayList<String> listOfReplies = new ArrayList<String>(18);
+    // Pool of the open connections to the camera, keyed by the request path.
+    public final Map<String, ChannelTracking> channelTrackingMap = new ConcurrentHashMap<String, ChannelTracking>(18);
     public ArrayList<String> lowPriorityRequests = new ArrayList<String>(0);
-    public ReentrantLock lock = new ReentrantLock();
 
     // basicAuth MUST remain private as it holds the password
     private String basicAuth = "";
     public boolean useDigestAuth = false;
+    // Shared by all connections to the camera so requests are signed without waiting for a 401 first.
+    public final DigestSession digestSession = new DigestSession();
+    // Alarm and other channel states go to openHAB from the state thread, not the Netty threads.
+    private final ChannelStatePublisher statePublisher;
+    // Limits how often a JPEG is copied to the Image channel.
+    private final ImageChannelPublisher imagePublisher;
+    // Motion from the snapshots instead of an ffmpeg decode of the RTSP stream, used when SNAPSHOT_MOTION is on.
+    private final SnapshotMotionDetector snapshotMotionDetector;
+    private boolean snapshotMotion = false;
+    // Smaller copies of the current snapshot for /ipcamera.jpg?w=320.
+    private final ThumbnailCache thumbnailCache;
+    // Hikvision and Dahua cameras on the same NVR share one alarm stream through the hub.
+    private @Nullable NvrEventHub nvrEventHub = null;
+    // Keeps the alarm debounce state for events from the shared stream, it is not tied to any one connection.
+    private @Nullable ChannelDuplexHandler nvrEventHandler = null;
     public String snapshotUri = "";
     public String mjpegUri = "";
-    private @Nullable ChannelFuture serverFuture = null;
+    private boolean streamServerStarted = false;
     public int serverPort = 0;
     private Object firstStreamedMsg = new Object();
-    public byte[] currentSnapshot = new byte[] { (byte) 0x00 };
-    public ReentrantLock lockCurrentSnapshot = new ReentrantLock();
+    // Latest JPEG from the camera, readers take a reference with acquireSnapshot() so no lock or copy is needed.
+    private final AtomicReference<SnapshotFrame> currentSnapshot = new AtomicReference<SnapshotFrame>(
+            SnapshotFrame.EMPTY);
+    private final AtomicLong snapshotSequence = new AtomicLong();
     public String rtspUri = "";
     public String ipAddress = "empty";
     public String updateImageEvents = "";
@@ -214,11 +250,43 @@ public class IpCameraHandler extends BaseThingHandler {
     public boolean audioAlarmEnabled = false;
     public boolean ffmpegSnapshotGeneration = false;
     public boolean snapshotPolling = false;
-    public OnvifConnection onvifCamera = new OnvifConnection(this, "", "", "");
+    public OnvifConnection onvifCamera;
 
-    public IpCameraHandler(Thing thing) {
+    public IpCameraHandler(Thing thing, IpCameraEventLoops eventLoops) {
         super(thing);
         config = thing.getConfiguration();
+        this.eventLoops = eventLoops;
+        cameraEventLoop = eventLoops.next();
+        sharedScheduler = eventLoops.getScheduler();
+        ffmpegSupervisor = new FfmpegSupervisor(sharedScheduler, "SHARED");
+        hlsSupervisor = new FfmpegSupervisor(sharedScheduler, "HLS");
+        onvifCamera = new OnvifConnection(this, "", "", "");
+        ChannelStatePublisher.Sink stateSink = new ChannelStatePublisher.Sink() {
+            @Override
+            public void publish(String channelId, State state) {
+                updateState(channelId, state);
+            }
+        };
+        statePublisher = new ChannelStatePublisher(stateSink, eventLoops.getStateExecutor(), 100);
+        imagePublisher = new ImageChannelPublisher(stateSink, CHANNEL_IMAGE, eventLoops.getStateExecutor(), 1000);
+        snapshotMotionDetector = new SnapshotMotionDetector(this, eventLoops.getImageExecutor());
+        thumbnailCache = new ThumbnailCache(eventLoops.getImageExecutor());
+    }
+
+    public FfmpegSupervisor getFfmpegSupervisor() {
+        return ffmpegSupervisor;
+    }
+
+    public ThumbnailCache getThumbnailCache() {
+        return thumbnailCache;
+    }
+
+    public IpCameraEventLoops getEventLoops() {
+        return eventLoops;
+    }
+
+    public EventLoop getCameraEventLoop() {
+        return cameraEventLoop;
     }
 
     private IpCameraHandler getHandle() {
@@ -285,72 +353,53 @@ public class IpCameraHandler extends BaseThingHandler {
         return temp;
     }
 
+    // Removes closed connections from the pool and closes any re-usable ones that have been idle too long.
     private void cleanChannels() {
-        lock.lock();
-        for (byte index = 0; index < listOfRequests.size(); index++) {
-            logger.debug("Channel status is {} for URL:{}", listOfChStatus.get(index), listOfRequests.get(index));
-            switch (listOfChStatus.get(index)) {
-                case 2: // Open and OK to reuse
-                case 1: // Open
-                case 0: // Closing but still open
-                    Channel channel = listOfChannels.get(index);
-                    if (channel.isOpen()) {
-                        break;
-                    } else {
-                        listOfChStatus.set(index, (byte) -1);
-                        logger.warn("Cleaning the channels has just found a connection with wrong open state.");
-                    }
-                case -1: // closed
-                    listOfRequests.remove(index);
-                    listOfChStatus.remove(index);
-                    listOfChannels.remove(index);
-                    listOfReplies.remove(index);
-                    index--;
-                    break;
+        for (ChannelTracking tracker : channelTrackingMap.values()) {
+            ChannelState state = tracker.getState();
+            if (state == ChannelState.REUSABLE && tracker.getIdleTime() > 15000) {
+                logger.debug("Closing an idle connection that was kept for re-use, URL:{}", tracker.getRequestUrl());
+                tracker.setState(ChannelState.CLOSING);
+                tracker.getChannel().close();
+                continue;
             }
+            if (state != ChannelState.CLOSED) {
+                if (tracker.getChannel().isOpen()) {
+                    continue;
+                }
+                tracker.setState(ChannelState.CLOSED);
+            }
+            // Only removes the entry if it was not replaced by a newer connection.
+            channelTrackingMap.remove(tracker.getRequestUrl(), tracker);
         }
-        lock.unlock();
     }
 
     private void closeChannel(String url) {
-        lock.lock();
-        try {
-            for (byte index = 0; index < listOfRequests.size(); index++) {
-                if (listOfRequests.get(index).equals(url)) {
-                    switch (listOfChStatus.get(index)) {
-                        case 2: // Still open and OK to reuse
-                        case 1: // Still open
-                        case 0: // Marked as closing but channel still needs to be closed.
-                            Channel chan = listOfChannels.get(index);
-                            chan.close();// We can't wait as OH kills any handler that takes >5 seconds.
-                    }
-                }
-            }
-        } finally {
-            lock.unlock();
+        ChannelTracking tracker = channelTrackingMap.get(url);
+        if (tracker != null && tracker.getState() != ChannelState.CLOSED) {
+            tracker.getChannel().close();// We can't wait as OH kills any handler that takes >5 seconds.
         }
     }
 
     private void closeAllChannels() {
-        lock.lock();
-        try {
-            for (byte index = 0; index < listOfRequests.size(); index++) {
-                logger.debug("Channel status is {} for URL:{}", listOfChStatus.get(index), listOfRequests.get(index));
-                switch (listOfChStatus.get(index)) {
-                    case 2: // Still open and ok to reuse
-                    case 1: // Still open
-                    case 0: // Marked as closing but channel still needs to be closed.
-                        Channel chan = listOfChannels.get(index);
-                        chan.close();
-                        // Handlers may get shutdown by Openhab if total delay >5 secs so no wait.
-                        break;
-                }
+        for (ChannelTracking tracker : channelTrackingMap.values()) {
+            logger.debug("Channel status is {} for URL:{}", tracker.getState(), tracker.getRequestUrl());
+            if (tracker.getState() != ChannelState.CLOSED) {
+                // Handlers may get shutdown by Openhab if total delay >5 secs so no wait.
+                tracker.getChannel().close();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
+    // Returns the pool entry for the url only if this channel is the connection being tracked for it.
+    public @Nullable ChannelTracking getTracker(String url, Channel channel) {
+        ChannelTracking tracker = channelTrackingMap.get(url);
+        if (tracker != null && tracker.getChannel() == channel) {
+            return tracker;
+        }
+        return null;
+    }
+
     public void sendHttpPUT(String httpRequestURL, FullHttpRequest request) {
         putRequestWithBody = request; // use Global so the authhandler can use it when resent with DIGEST.
         sendHttpRequest("PUT", httpRequestURL, null);
@@ -386,8 +435,8 @@ public class IpCameraHandler extends BaseThingHandler {
 
         if (mainBootstrap == null) {
             mainBootstrap = new Bootstrap();
-            mainBootstrap.group(mainEventLoopGroup);
-            mainBootstrap.channel(NioSocketChannel.class);
+            mainBootstrap.group(cameraEventLoop);
+            mainBootstrap.channel(eventLoops.getSocketChannelClass());
             mainBootstrap.option(ChannelOption.SO_KEEPALIVE, true);
             mainBootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 4500);
             mainBootstrap.option(ChannelOption.SO_SNDBUF, 1024 * 8);
@@ -409,6 +458,8 @@ public class IpCameraHandler extends BaseThingHandler {
                             socketChannel.pipeline().addLast("amcrestHandler", new AmcrestHandler(getHandle()));
                             break;
                         case "DAHUA":
+                            socketChannel.pipeline().addBefore("commonHandler", "dahuaEventDecoder",
+                                    new DahuaEventDecoder());
                             socketChannel.pipeline().addLast("brandHandler", new DahuaHandler(getHandle(), nvrChannel));
                             break;
                         case "DOORBIRD":
@@ -419,6 +470,8 @@ public class IpCameraHandler extends BaseThingHandler {
                                     new FoscamHandler(getHandle(), username, password));
                             break;
                         case "HIKVISION":
+                            socketChannel.pipeline().addBefore("commonHandler", "hikvisionEventDecoder",
+                                    new HikvisionEventDecoder());
                             socketChannel.pipeline().addLast("brandHandler",
                                     new HikvisionHandler(getHandle(), nvrChannel));
                             break;
@@ -433,6 +486,12 @@ public class IpCameraHandler extends BaseThingHandler {
             });
         }
 
+        boolean answeringChallenge = digestString != null;
+        if (useDigestAuth && digestString == null && digestSession.isReady()) {
+            // The camera only sends a 401 again once the nonce goes stale.
+            digestString = digestSession.authorize(httpMethod, httpRequestURL);
+        }
+
         FullHttpRequest request;
         if (httpMethod.contentEquals("PUT")) {
             if (useDigestAuth && digestString == null) {
@@ -463,6 +522,25 @@ public class IpCameraHandler extends BaseThingHandler {
             }
         }
 
+        ChannelTracking tracker = channelTrackingMap.get(httpRequestURL);
+        if (tracker != null && !answeringChallenge && httpRequestURL.equals(snapshotUri)
+                && tracker.getState() == ChannelState.OPEN && tracker.getChannel().isOpen()
+                && tracker.getIdleTime() < SNAPSHOT_IN_FLIGHT_MS) {
+            // The last snapshot is still arriving on the kept alive connection, polling now would only open another.
+            logger.trace("Skipping a snapshot poll as the last one has not finished yet.");
+            return;
+        }
+        if (tracker != null && tracker.getChannel().isOpen() && tracker.claimIfReusable()) {
+            Channel ch = tracker.getChannel();
+            logger.debug("Using the already open channel:\t{}:{}", httpMethod, httpRequestURL);
+            CommonCameraHandler commonHandler = (CommonCameraHandler) ch.pipeline().get("commonHandler");
+            commonHandler.setURL(httpRequestURL);
+            MyNettyAuthHandler authHandler = (MyNettyAuthHandler) ch.pipeline().get("authHandler");
+            authHandler.setURL(httpMethod, httpRequestURL);
+            ch.writeAndFlush(request);
+            return;
+        }
+
         mainBootstrap.connect(new InetSocketAddress(ipAddress, port)).addListener(new ChannelFutureListener() {
             @Override
             public void operationComplete(@Nullable ChannelFuture future) {
@@ -471,42 +549,6 @@ public class IpCameraHandler extends BaseThingHandler {
                 }
                 if (future.isDone() && future.isSuccess()) {
                     logger.trace("Sending camera: {}: http://{}{}", httpMethod, ipAddress, httpRequestURL);
-                    lock.lock();
-                    byte indexInLists = -1;
-                    try {
-                        for (byte index = 0; index < listOfRequests.size(); index++) {
-                            boolean done = false;
-                            if (listOfRequests.get(index).equals(httpRequestURL)) {
-                                switch (listOfChStatus.get(index)) {
-                                    case 2: // Open and ok to reuse
-                                        Channel ch = listOfChannels.get(index);
-                                        if (ch.isOpen()) {
-                                            logger.debug("Using the already open channel:{} \t{}:{}", index, httpMethod,
-                                                    httpRequestURL);
-                                            CommonCameraHandler commonHandler = (CommonCameraHandler) ch.pipeline()
-                                                    .get("commonHandler");
-                                            commonHandler.setURL(httpRequestURLFull);
-                                            MyNettyAuthHandler authHandler = (MyNettyAuthHandler) ch.pipeline()
-                                                    .get("authHandler");
-                                            authHandler.setURL(httpMethod, httpRequestURL);
-                                            ch.writeAndFlush(request);
-                                            return;
-                                        }
-                                    case -1: // Closed
-                                        indexInLists = index;
-                                        listOfChStatus.set(indexInLists, (byte) 1);
-                                        done = true;
-                                        break;
-                                }
-                                if (done) {
-                                    break;
-                                }
-                            }
-                        }
-                    } finally {
-                        lock.unlock();
-                    }
-
                     Channel ch = future.channel();
                     CommonCameraHandler commonHandler = (CommonCameraHandler) ch.pipeline().get("commonHandler");
                     MyNettyAuthHandler authHandler = (MyNettyAuthHandler) ch.pipeline().get("authHandler");
@@ -523,28 +565,11 @@ public class IpCameraHandler extends BaseThingHandler {
                             instarHandler.setURL(httpRequestURL);
                             break;
                     }
-
-                    if (indexInLists >= 0) {
-                        lock.lock();
-                        try {
-                            listOfChannels.set(indexInLists, ch);
-                        } finally {
-                            lock.unlock();
-                        }
-                        // logger.debug("Have re-opened the closed channel:{} \t{}:{}", indexInLists, httpMethod,
-                        // httpRequestURL);
-                    } else {
-                        lock.lock();
-                        try {
-                            listOfRequests.add(httpRequestURL);
-                            listOfChannels.add(ch);
-                            listOfChStatus.add((byte) 1);
-                            listOfReplies.add("");
-                        } finally {
-                            lock.unlock();
-                        }
-                        // logger.debug("Have opened a brand NEW channel:{} \t{}:{}", listOfRequests.size() - 1,
-                        // httpMethod, httpRequestURL);
+                    // A newer connection replaces the old entry, the old channel is left to finish on its own.
+                    ChannelTracking newTracker = new ChannelTracking(ch, httpRequestURL);
+                    ChannelTracking oldTracker = channelTrackingMap.put(httpRequestURL, newTracker);
+                    if (oldTracker != null) {
+                        newTracker.setReply(oldTracker.getReply());
                     }
                     ch.writeAndFlush(request);
                     if (!isOnline) {
@@ -559,37 +584,65 @@ public class IpCameraHandler extends BaseThingHandler {
         });
     }
 
-    public void processSnapshot() {
-        lockCurrentSnapshot.lock();
+    // Takes ownership of the jpeg and makes it the snapshot that all streams and channels are served from.
+    public void publishSnapshot(ByteBuf jpeg) {
+        SnapshotFrame frame = new SnapshotFrame(jpeg, snapshotSequence.incrementAndGet());
+        frame.tryRetain(); // second reference keeps the frame alive while processing if a newer one arrives.
+        currentSnapshot.getAndSet(frame).release();
+        thumbnailCache.invalidate(frame.getSequence());
+        try {
+            processSnapshot(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    // The caller must release the frame when done, it is never null and is empty until a snapshot arrives.
+    public SnapshotFrame acquireSnapshot() {
+        return SnapshotFrame.acquire(currentSnapshot);
+    }
 
+    // Returns a slice of the current snapshot that the caller owns, or null if there is no snapshot yet.
+    public @Nullable ByteBuf getSnapshotSlice() {
+        SnapshotFrame frame = acquireSnapshot();
+        try {
+            if (frame.isEmpty()) {
+                return null;
+            }
+            return frame.retainedSlice();
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void processSnapshot(SnapshotFrame frame) {
         if (streamingSnapshotMjpeg) {
-            sendMjpegFrame(currentSnapshot, snapshotMjpegChannelGroup);
+            sendMjpegFrame(frame, snapshotMjpegChannelGroup);
         }
         if (streamingAutoFps) {
             if (motionDetected) {
-                sendMjpegFrame(currentSnapshot, autoSnapshotMjpegChannelGroup);
+                sendMjpegFrame(frame, autoSnapshotMjpegChannelGroup);
             } else if (updateAutoFps) {
-                sendMjpegFrame(currentSnapshot, autoSnapshotMjpegChannelGroup);
+                sendMjpegFrame(frame, autoSnapshotMjpegChannelGroup);
                 updateAutoFps = false;
             }
         }
         if (preroll > 0) {
-            fifoSnapshotBuffer.add(currentSnapshot);
-            if (fifoSnapshotBuffer.size() > (preroll + postroll)) {
-                fifoSnapshotBuffer.removeFirst();
-            }
+            snapshotHistory.append(frame);
+        }
+        if (snapshotMotion && motionAlarmEnabled) {
+            snapshotMotionDetector.offer(frame);
         }
 
         if (updateImageChannel) {
-            updateState(CHANNEL_IMAGE, new RawType(currentSnapshot, "image/jpeg"));
+            imagePublisher.offer(frame);
         } else if (firstMotionAlarm || motionAlarmUpdateSnapshot) {
-            updateState(CHANNEL_IMAGE, new RawType(currentSnapshot, "image/jpeg"));
+            imagePublisher.offer(frame);
             firstMotionAlarm = motionAlarmUpdateSnapshot = false;
         } else if (firstAudioAlarm || audioAlarmUpdateSnapshot) {
-            updateState(CHANNEL_IMAGE, new RawType(currentSnapshot, "image/jpeg"));
+            imagePublisher.offer(frame);
             firstAudioAlarm = audioAlarmUpdateSnapshot = false;
         }
-        lockCurrentSnapshot.unlock();
     }
 
     // These methods handle the response from all Camera brands, nothing specific to
@@ -598,7 +651,8 @@ public class IpCameraHandler extends BaseThingHandler {
     private class CommonCameraHandler extends ChannelDuplexHandler {
         private int bytesToRecieve = 0;
         private int bytesAlreadyRecieved = 0;
-        private byte[] incomingJpeg = new byte[0];
+        // Holds the retained HttpContent buffers of a JPEG until the last one arrives, so no bytes are copied.
+        private @Nullable CompositeByteBuf incomingJpeg = null;
         private String incomingMessage = "";
         private String contentType = "empty";
         private Object reply = new Object();
@@ -615,11 +669,18 @@ public class IpCameraHandler extends BaseThingHandler {
             if (msg == null || ctx == null) {
                 return;
             }
+            if (!(msg instanceof HttpObject)) {
+                // Already decoded by a brand specific decoder earlier in the pipeline.
+                ctx.fireChannelRead(msg);
+                return;
+            }
             try {
                 // logger.trace("{}", msg.toString());
                 if (msg instanceof HttpResponse) {
                     HttpResponse response = (HttpResponse) msg;
                     if (response.status().code() != 401) {
+                        // HTTP/1.1 replies are keep-alive unless the camera says otherwise.
+                        closeConnection = !HttpUtil.isKeepAlive(response);
                         if (!response.headers().isEmpty()) {
                             for (String name : response.headers().names()) {
                                 // Some cameras use first letter uppercase and others dont.
@@ -630,11 +691,6 @@ public class IpCameraHandler extends BaseThingHandler {
                                     case "content-length":
                                         bytesToRecieve = Integer.parseInt(response.headers().getAsString(name));
                                         break;
-                                    case "connection":
-                                        if (response.headers().getAsString(name).contains("keep-alive")) {
-                                            closeConnection = false;
-                                        }
-                                        break;
                                     case "transfer-encoding":
                                         if (response.headers().getAsString(name).contains("chunked")) {
                                             isChunked = true;
@@ -653,24 +709,16 @@ public class IpCameraHandler extends BaseThingHandler {
                                     }
                                 }
                             } else if (contentType.contains("image/jp")) {
-                                if (bytesToRecieve == 0) {
-                                    bytesToRecieve = 768000; // 0.768 Mbyte when no Content-Length is sent
-                                    logger.debug("Camera has no Content-Length header, we have to guess how much RAM.");
-                                }
-                                incomingJpeg = new byte[bytesToRecieve];
+                                releaseIncomingJpeg();
+                                incomingJpeg = ctx.alloc().compositeBuffer(64);
                             }
                             if (closeConnection) {
-                                lock.lock();
-                                try {
-                                    byte indexInLists = (byte) listOfChannels.indexOf(ctx.channel());
-                                    if (indexInLists >= 0) {
-                                        listOfChStatus.set(indexInLists, (byte) 0);
-                                    } else {
-                                        logger.debug("!!!! Could not find the ch for a Connection: close URL:{}",
-                                                requestUrl);
-                                    }
-                                } finally {
-                                    lock.unlock();
+                                ChannelTracking tracker = getTracker(requestUrl, ctx.channel());
+                                if (tracker != null) {
+                                    tracker.setState(ChannelState.CLOSING);
+                                } else {
+                                    logger.debug("!!!! Could not find the ch for a Connection: close URL:{}",
+                                            requestUrl);
                                 }
                             }
                         }
@@ -680,35 +728,34 @@ public class IpCameraHandler extends BaseThingHandler {
                     if (mjpegUri.contains(requestUrl)) {
                         // multiple MJPEG stream packets come back as this.
                         ReferenceCountUtil.retain(msg, 1);
-                        streamToGroup(msg, mjpegChannelGroup, true);
+                        MjpegFanout.sendPassthrough(mjpegChannelGroup, msg);
                     } else {
                         HttpContent content = (HttpContent) msg;
                         // Found some cameras uses Content-Type: image/jpg instead of image/jpeg
                         if (contentType.contains("image/jp")) {
-                            for (int i = 0; i < content.content().capacity(); i++) {
-                                incomingJpeg[bytesAlreadyRecieved++] = content.content().getByte(i);
+                            CompositeByteBuf jpeg = incomingJpeg;
+                            if (jpeg == null) {
+                                return;
+                            }
+                            if (content.content().isReadable()) {
+                                bytesAlreadyRecieved += content.content().readableBytes();
+                                jpeg.addComponent(true, content.content().retain());
                             }
                             if (content instanceof LastHttpContent) {
-                                lockCurrentSnapshot.lock();
-                                currentSnapshot = incomingJpeg;
-                                lockCurrentSnapshot.unlock();
-                                processSnapshot();
-                                // testing next line and if works need to do a full cleanup of this function.
-                                closeConnection = true;
+                                incomingJpeg = null;
+                                bytesToRecieve = 0;
+                                bytesAlreadyRecieved = 0;
+                                publishSnapshot(jpeg);
                                 if (closeConnection) {
                                     // logger.trace("Snapshot recieved: Binding will now close the channel.");
                                     ctx.close();
                                 } else {
-                                    lock.lock();
-                                    try {
-                                        byte indexInLists = (byte) listOfChannels.indexOf(ctx.channel());
-                                        if (indexInLists >= 0) {
-                                            listOfChStatus.set(indexInLists, (byte) 2);
-                                        }
-                                    } finally {
-                                        lock.unlock();
-                                        bytesToRecieve = 0;
-                                        bytesAlreadyRecieved = 0;
+                                    // The next snapshot poll is sent on this connection.
+                                    ChannelTracking tracker = getTracker(requestUrl, ctx.channel());
+                                    if (tracker != null) {
+                                        tracker.setState(ChannelState.REUSABLE);
+                                    } else {
+                                        ctx.close();
                                     }
                                 }
                             }
@@ -757,6 +804,14 @@ public class IpCameraHandler extends BaseThingHandler {
             }
         }
 
+        private void releaseIncomingJpeg() {
+            CompositeByteBuf jpeg = incomingJpeg;
+            if (jpeg != null) {
+                jpeg.release();
+                incomingJpeg = null;
+            }
+        }
+
         @Override
         public void channelReadComplete(@Nullable ChannelHandlerContext ctx) {
         }
@@ -770,19 +825,11 @@ public class IpCameraHandler extends BaseThingHandler {
             if (ctx == null) {
                 return;
             }
-            lock.lock();
-            try {
-                byte indexInLists = (byte) listOfChannels.indexOf(ctx.channel());
-                if (indexInLists >= 0) {
-                    // logger.debug("commonCameraHandler closed channel:{} \tURL:{}", indexInLists, requestUrl);
-                    listOfChStatus.set(indexInLists, (byte) -1);
-                } else {
-                    if (listOfChannels.size() > 0) {
-                        logger.warn("Can't find ch when removing handler \t\tURL:{}", requestUrl);
-                    }
-                }
-            } finally {
-                lock.unlock();
+            releaseIncomingJpeg();
+            ChannelTracking tracker = getTracker(requestUrl, ctx.channel());
+            if (tracker != null) {
+                // logger.debug("commonCameraHandler closed channel \tURL:{}", requestUrl);
+                tracker.setState(ChannelState.CLOSED);
             }
         }
 
@@ -791,12 +838,7 @@ public class IpCameraHandler extends BaseThingHandler {
             if (cause == null || ctx == null) {
                 return;
             }
-            if (cause.toString().contains("java.lang.ArrayIndexOutOfBoundsException")) {
-                logger.debug("Camera sent {} bytes when the content-length header was {}.", bytesAlreadyRecieved,
-                        bytesToRecieve);
-            } else {
-                logger.warn("!!!! Camera possibly closed the channel on the binding, cause reported is: {}", cause);
-            }
+            logger.warn("!!!! Camera possibly closed the channel on the binding, cause reported is: {}", cause);
             ctx.close();
         }
 
@@ -809,40 +851,29 @@ public class IpCameraHandler extends BaseThingHandler {
                 IdleStateEvent e = (IdleStateEvent) evt;
                 // If camera does not use the channel for X amount of time it will close.
                 if (e.state() == IdleState.READER_IDLE) {
-                    lock.lock();
-                    try {
-                        byte indexInLists = (byte) listOfChannels.indexOf(ctx.channel());
-                        if (indexInLists >= 0) {
-                            String urlToKeepOpen;
-                            switch (thing.getThingTypeUID().getId()) {
-                                case "DAHUA":
-                                    urlToKeepOpen = listOfRequests.get(indexInLists);
-                                    if ("/cgi-bin/eventManager.cgi?action=attach&codes=[All]"
-                                            .contentEquals(urlToKeepOpen)) {
-                                        return;
-                                    }
-                                    break;
-                                case "HIKVISION":
-                                    urlToKeepOpen = listOfRequests.get(indexInLists);
-                                    if ("/ISAPI/Event/notification/alertStream".contentEquals(urlToKeepOpen)) {
-                                        return;
-                                    }
-                                    break;
-                                case "DOORBIRD":
-                                    urlToKeepOpen = listOfRequests.get(indexInLists);
-                                    if ("/bha-api/monitor.cgi?ring=doorbell,motionsensor"
-                                            .contentEquals(urlToKeepOpen)) {
-                                        return;
-                                    }
-                                    break;
+                    switch (thing.getThingTypeUID().getId()) {
+                        case "DAHUA":
+                            if ("/cgi-bin/eventManager.cgi?action=attach&codes=[All]".contentEquals(requestUrl)) {
+                                return;
                             }
-                            logger.debug("! Channel was found idle for more than 15 seconds so closing it down. !");
-                            listOfChStatus.set(indexInLists, (byte) 0);
-                        } else {
-                            logger.warn("!?! Channel that was found idle could not be located in our tracking. !?!");
-                        }
-                    } finally {
-                        lock.unlock();
+                            break;
+                        case "HIKVISION":
+                            if ("/ISAPI/Event/notification/alertStream".contentEquals(requestUrl)) {
+                                return;
+                            }
+                            break;
+                        case "DOORBIRD":
+                            if ("/bha-api/monitor.cgi?ring=doorbell,motionsensor".contentEquals(requestUrl)) {
+                                return;
+                            }
+                            break;
+                    }
+                    ChannelTracking tracker = getTracker(requestUrl, ctx.channel());
+                    if (tracker != null) {
+                        logger.debug("! Channel was found idle for more than 15 seconds so closing it down. !");
+                        tracker.setState(ChannelState.CLOSING);
+                    } else {
+                        logger.debug("Channel that was found idle is no longer tracked, closing it down.");
                     }
                     ctx.close();
                 }
@@ -871,42 +902,34 @@ public class IpCameraHandler extends BaseThingHandler {
         return ipAddress;
     }
 
-    @SuppressWarnings("null")
-    public void startStreamServer(boolean start) {
+    // Base of the urls this camera serves, the shared stream server routes them by the things ID.
+    public String getServerUrl(String host) {
+        return "http://" + host + ":" + serverPort + "/" + getThing().getUID().getId();
+    }
 
+    public void startStreamServer(boolean start) {
         if (!start) {
-            serversLoopGroup.shutdownGracefully();
-            serverBootstrap = null;
+            if (streamServerStarted) {
+                eventLoops.stopStreamServer(serverPort, getThing().getUID().getId());
+                streamServerStarted = false;
+            }
         } else {
-            if (serverBootstrap == null) {
+            if (!streamServerStarted) {
                 hostIp = getLocalIpAddress();
                 try {
-                    serversLoopGroup = new NioEventLoopGroup();
-                    serverBootstrap = new ServerBootstrap();
-                    serverBootstrap.group(serversLoopGroup);
-                    serverBootstrap.channel(NioServerSocketChannel.class);
-                    // IP "0.0.0.0" will bind the server to all network connections//
-                    serverBootstrap.localAddress(new InetSocketAddress("0.0.0.0", serverPort));
-                    serverBootstrap.childHandler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        protected void initChannel(SocketChannel socketChannel) throws Exception {
-                            socketChannel.pipeline().addLast("idleStateHandler", new IdleStateHandler(0, 25, 0));
-                            socketChannel.pipeline().addLast("HttpServerCodec", new HttpServerCodec());
-                            socketChannel.pipeline().addLast("ChunkedWriteHandler", new ChunkedWriteHandler());
-                            socketChannel.pipeline().addLast("streamServerHandler",
-                                    new StreamServerHandler(getHandle()));
-                        }
-                    });
-                    serverFuture = serverBootstrap.bind().sync();
-                    serverFuture.await(4000);
-                    logger.debug("File server for camera at {} has started on port {} for all NIC's.", ipAddress,
+                    eventLoops.startStreamServer(serverPort, getThing().getUID().getId(),
+                            new SharedStreamServer.HandlerFactory() {
+                                @Override
+                                public ChannelHandler newStreamServerHandler() {
+                                    return new StreamServerHandler(getHandle());
+                                }
+                            });
+                    streamServerStarted = true;
+                    logger.debug("File server for camera at {} is serving on port {} for all NIC's.", ipAddress,
                             serverPort);
-                    updateState(CHANNEL_STREAM_URL,
-                            new StringType("http://" + hostIp + ":" + serverPort + "/ipcamera.mjpeg"));
-                    updateState(CHANNEL_HLS_URL,
-                            new StringType("http://" + hostIp + ":" + serverPort + "/ipcamera.m3u8"));
-                    updateState(CHANNEL_IMAGE_URL,
-                            new StringType("http://" + hostIp + ":" + serverPort + "/ipcamera.jpg"));
+                    updateState(CHANNEL_STREAM_URL, new StringType(getServerUrl(hostIp) + "/ipcamera.mjpeg"));
+                    updateState(CHANNEL_HLS_URL, new StringType(getServerUrl(hostIp) + "/ipcamera.m3u8"));
+                    updateState(CHANNEL_IMAGE_URL, new StringType(getServerUrl(hostIp) + "/ipcamera.jpg"));
                 } catch (Exception e) {
                     logger.error(
                             "Exception occured when starting the streaming server. Try changing the SERVER_PORT to another number: {}",
@@ -921,17 +944,17 @@ public class IpCameraHandler extends BaseThingHandler {
             sendMjpegFirstPacket(ctx);
             if (auto) {
                 autoSnapshotMjpegChannelGroup.add(ctx.channel());
-                lockCurrentSnapshot.lock();
-                sendMjpegFrame(currentSnapshot, autoSnapshotMjpegChannelGroup);
+                SnapshotFrame frame = acquireSnapshot();
+                sendMjpegFrame(frame, autoSnapshotMjpegChannelGroup);
                 // iOS uses a FIFO? and needs two frames to display a pic
-                sendMjpegFrame(currentSnapshot, autoSnapshotMjpegChannelGroup);
-                lockCurrentSnapshot.unlock();
+                sendMjpegFrame(frame, autoSnapshotMjpegChannelGroup);
+                frame.release();
                 streamingAutoFps = true;
             } else {
                 snapshotMjpegChannelGroup.add(ctx.channel());
-                lockCurrentSnapshot.lock();
-                sendMjpegFrame(currentSnapshot, snapshotMjpegChannelGroup);
-                lockCurrentSnapshot.unlock();
+                SnapshotFrame frame = acquireSnapshot();
+                sendMjpegFrame(frame, snapshotMjpegChannelGroup);
+                frame.release();
                 streamingSnapshotMjpeg = true;
                 startSnapshotPolling();
             }
@@ -995,10 +1018,8 @@ public class IpCameraHandler extends BaseThingHandler {
 
     // sends direct to ctx so can be either snapshots.mjpeg or normal mjpeg stream
     public void sendMjpegFirstPacket(ChannelHandlerContext ctx) {
-        final String BOUNDARY = "thisMjpegStream";
-        String contentType = "multipart/x-mixed-replace; boundary=" + BOUNDARY;
         HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-        response.headers().add(HttpHeaderNames.CONTENT_TYPE, contentType);
+        response.headers().add(HttpHeaderNames.CONTENT_TYPE, MjpegFramer.CONTENT_TYPE);
         response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
         response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
         response.headers().add("Access-Control-Allow-Origin", "*");
@@ -1006,17 +1027,17 @@ public class IpCameraHandler extends BaseThingHandler {
         ctx.channel().writeAndFlush(response);
     }
 
-    public void sendMjpegFrame(byte[] jpg, ChannelGroup channelGroup) {
-        final String BOUNDARY = "thisMjpegStream";
-        ByteBuf imageByteBuf = Unpooled.copiedBuffer(jpg);
-        int length = imageByteBuf.readableBytes();
-        String header = "--" + BOUNDARY + "\r\n" + "content-type: image/jpeg" + "\r\n" + "content-length: " + length
-                + "\r\n\r\n";
-        ByteBuf headerBbuf = Unpooled.copiedBuffer(header, 0, header.length(), StandardCharsets.UTF_8);
-        ByteBuf footerBbuf = Unpooled.copiedBuffer("\r\n", 0, 2, StandardCharsets.UTF_8);
-        streamToGroup(headerBbuf, channelGroup, false);
-        streamToGroup(imageByteBuf, channelGroup, false);
-        streamToGroup(footerBbuf, channelGroup, true);
+    public void sendMjpegFrame(SnapshotFrame frame, ChannelGroup channelGroup) {
+        ByteBuf jpg = frame.retainedSlice();
+        if (jpg != null) {
+            sendMjpegFrame(jpg, channelGroup);
+        }
+    }
+
+    // Takes ownership of the jpg buffer, it is released once written to all channels.
+    public void sendMjpegFrame(ByteBuf imageByteBuf, ChannelGroup channelGroup) {
+        // One buffer per frame, the group gives each channel a retained duplicate so nothing is copied.
+        MjpegFanout.sendFrame(channelGroup, MjpegFramer.frame(imageByteBuf));
     }
 
     public void streamToGroup(Object msg, ChannelGroup channelGroup, boolean flush) {
@@ -1026,26 +1047,29 @@ public class IpCameraHandler extends BaseThingHandler {
         }
     }
 
-    private void storeSnapshots() {
-        int count = 0;
-        // Need to lock as fifoSnapshotBuffer is not thread safe and new snapshots can be incoming.
-        lockCurrentSnapshot.lock();
-        logger.debug("Storing snapshots now to disk for GIF");
-        for (Object incomingJpeg : fifoSnapshotBuffer) {
-            byte[] foo = (byte[]) incomingJpeg;
-            File file = new File(ffmpegOutputFolder + "snapshot" + count + ".jpg");
-            count++;
-            try {
-                OutputStream fos = new FileOutputStream(file);
-                fos.write(foo);
-                fos.close();
-            } catch (FileNotFoundException e) {
-                logger.error("FileNotFoundException {}", e);
-            } catch (IOException e) {
-                logger.error("IOException {}", e);
+    private void keepGifSnapshots(List<SnapshotFrame> frames) {
+        List<SnapshotFrame> kept = new ArrayList<SnapshotFrame>(frames.size());
+        for (SnapshotFrame frame : frames) {
+            if (frame.tryRetain()) {
+                kept.add(frame);
+            }
+        }
+        List<SnapshotFrame> older;
+        synchronized (gifSnapshotsLock) {
+            older = gifSnapshots;
+            gifSnapshots = kept;
+        }
+        SnapshotRingBuffer.releaseAll(older);
+    }
+
+    // Returns a slice the caller owns of snapshot N from the last GIF, or null if there is no such snapshot.
+    public @Nullable ByteBuf getGifSnapshot(int index) {
+        synchronized (gifSnapshotsLock) {
+            if (index < 0 || index >= gifSnapshots.size()) {
+                return null;
             }
+            return gifSnapshots.get(index).retainedSlice();
         }
-        lockCurrentSnapshot.unlock();
     }
 
     public void setupFfmpegFormat(String format) {
@@ -1079,18 +1103,27 @@ public class IpCameraHandler extends BaseThingHandler {
                                 config.get(CONFIG_FFMPEG_HLS_OUT_ARGUMENTS).toString(),
                                 ffmpegOutputFolder + "ipcamera.m3u8", username, password);
                     }
+                    ffmpegHLS.useSharedProcess(hlsSupervisor);
                 }
                 if (ffmpegHLS != null) {
                     ffmpegHLS.startConverting();
+                    if (hlsSegmentCache != null) {
+                        hlsSegmentCache.start();
+                    }
                 }
                 break;
             case "GIF":
                 if (preroll > 0) {
-                    ffmpegGIF = new Ffmpeg(this, format, config.get(CONFIG_FFMPEG_LOCATION).toString(),
-                            "-y -r 1 -hide_banner -loglevel warning", ffmpegOutputFolder + "snapshot%d.jpg",
+                    // The stored snapshots are piped to ffmpeg, so no files are written and read back.
+                    Ffmpeg pipedGif = new Ffmpeg(this, format, config.get(CONFIG_FFMPEG_LOCATION).toString(),
+                            "-y -f image2pipe -c:v mjpeg -framerate 1 -hide_banner -loglevel warning", "-",
                             "-frames:v " + (preroll + postroll) + " "
                                     + config.get(CONFIG_FFMPEG_GIF_OUT_ARGUMENTS).toString(),
                             ffmpegOutputFolder + gifFilename + ".gif", username, password);
+                    List<SnapshotFrame> frames = snapshotHistory.snapshot();
+                    keepGifSnapshots(frames);
+                    pipedGif.setInputFrames(frames);
+                    ffmpegGIF = pipedGif;
                 } else {
                     inOptions = "-y -t " + postroll + " -rtsp_transport tcp -hide_banner -loglevel warning";
                     if (!rtspUri.contains("rtsp")) {
@@ -1100,9 +1133,6 @@ public class IpCameraHandler extends BaseThingHandler {
                             rtspUri, config.get(CONFIG_FFMPEG_GIF_OUT_ARGUMENTS).toString(),
                             ffmpegOutputFolder + gifFilename + ".gif", username, password);
                 }
-                if (preroll > 0) {
-                    storeSnapshots();
-                }
                 if (ffmpegGIF != null) {
                     ffmpegGIF.startConverting();
                     if (gifHistory.equals("")) {
@@ -1122,11 +1152,26 @@ public class IpCameraHandler extends BaseThingHandler {
                 if (!rtspUri.contains("rtsp")) {
                     inOptions = "-y -t " + mp4RecordTime;
                 }
-                ffmpegRecord = new Ffmpeg(this, format, config.get(CONFIG_FFMPEG_LOCATION).toString(), inOptions,
-                        rtspUri, config.get(CONFIG_FFMPEG_MP4_OUT_ARGUMENTS).toString(),
-                        ffmpegOutputFolder + mp4Filename + ".mp4", username, password);
-                if (mp4Preroll > 0) {
-                    // fetchFromHLS(); todo: not done yet
+                HlsSegmentCache segmentCache = hlsSegmentCache;
+                boolean prerollReady = mp4Preroll > 0 && segmentCache != null && ffmpegHLS != null
+                        && ffmpegHLS.getIsAlive();
+                if (prerollReady && segmentCache != null && !segmentCache.isMpegTs()) {
+                    logger.warn(
+                            "MP4_PREROLL needs the HLS segments to be MPEG-TS, recording without the preroll instead.");
+                    prerollReady = false;
+                }
+                if (prerollReady && segmentCache != null) {
+                    // The preroll and the rest of the recording are the HLS segments joined, so nothing is encoded.
+                    Ffmpeg prerollRecord = new Ffmpeg(this, format, config.get(CONFIG_FFMPEG_LOCATION).toString(),
+                            "-y -t " + (mp4Preroll + mp4RecordTime) + " -f mpegts -hide_banner -loglevel warning", "-",
+                            config.get(CONFIG_FFMPEG_MP4_OUT_ARGUMENTS).toString(),
+                            ffmpegOutputFolder + mp4Filename + ".mp4", username, password);
+                    prerollRecord.setStdinFeed(new HlsPrerollFeed(segmentCache, mp4Preroll, mp4RecordTime));
+                    ffmpegRecord = prerollRecord;
+                } else {
+                    ffmpegRecord = new Ffmpeg(this, format, config.get(CONFIG_FFMPEG_LOCATION).toString(), inOptions,
+                            rtspUri, config.get(CONFIG_FFMPEG_MP4_OUT_ARGUMENTS).toString(),
+                            ffmpegOutputFolder + mp4Filename + ".mp4", username, password);
                 }
                 if (ffmpegRecord != null) {
                     ffmpegRecord.startConverting();
@@ -1143,9 +1188,11 @@ public class IpCameraHandler extends BaseThingHandler {
                 }
                 break;
             case "RTSPHELPER":
+                // With SNAPSHOT_MOTION the helper is only needed for the audio alarm.
+                boolean ffmpegMotion = motionAlarmEnabled && !snapshotMotion;
                 if (ffmpegRtspHelper != null) {
                     ffmpegRtspHelper.stopConverting();
-                    if (!audioAlarmEnabled && !motionAlarmEnabled) {
+                    if (!audioAlarmEnabled && !ffmpegMotion) {
                         return;
                     }
                 }
@@ -1153,28 +1200,36 @@ public class IpCameraHandler extends BaseThingHandler {
                         : config.get(CONFIG_FFMPEG_MOTION_INPUT).toString();
                 String OutputOptions = "-f null -";
                 String filterOptions = "";
-                inOptions = "-rtsp_transport tcp";
-                if (!input.contains("rtsp")) {
-                    inOptions = "";
+                // The alarms are read from the progress and metadata ffmpeg writes to stdout, not from the log.
+                // file=- is the filters name for stdout, pipe:1 would need its colon escaped for the graph and option.
+                inOptions = "-progress pipe:1 -hide_banner -loglevel warning";
+                if (input.contains("rtsp")) {
+                    inOptions += " -rtsp_transport tcp";
                 }
                 if (audioAlarmEnabled == false) {
                     filterOptions = "-an";
                 } else if (audioAlarmEnabled == true) {
-                    filterOptions = "-af silencedetect=n=-" + audioThreshold + "dB:d=2";
+                    filterOptions = "-af silencedetect=n=-" + audioThreshold
+                            + "dB:d=2,ametadata=print:file=-:direct=1";
                 }
-                if (motionAlarmEnabled == false && ffmpegSnapshotGeneration == false) {
+                if (ffmpegMotion == false && ffmpegSnapshotGeneration == false) {
                     filterOptions = filterOptions.concat(" -vn");
-                } else if (motionAlarmEnabled == true) {
+                } else if (ffmpegMotion == true) {
                     filterOptions = filterOptions
-                            .concat(" -vf select='gte(scene," + motionThreshold + ")',metadata=print");
+                            .concat(" -vf select='gte(scene," + motionThreshold
+                                    + ")',metadata=print:file=-:direct=1");
                 }
                 if (config.get(CONFIG_USERNAME) != null) {
                     filterOptions += " ";// add space as the Framework does not allow spaces at start of config.
                 }
-                ffmpegRtspHelper = new Ffmpeg(this, format, config.get(CONFIG_FFMPEG_LOCATION).toString(), inOptions,
+                Ffmpeg rtspHelper = new Ffmpeg(this, format, config.get(CONFIG_FFMPEG_LOCATION).toString(), inOptions,
                         input, filterOptions + config.get(CONFIG_FFMPEG_MOTION_ARGUMENTS), OutputOptions, username,
                         password);
-                ffmpegRtspHelper.startConverting();
+                if (input.equals(rtspUri)) {
+                    rtspHelper.useSharedProcess(hlsSupervisor);
+                }
+                ffmpegRtspHelper = rtspHelper;
+                rtspHelper.startConverting();
                 break;
             case "MJPEG":
                 if (ffmpegMjpeg == null) {
@@ -1184,7 +1239,8 @@ public class IpCameraHandler extends BaseThingHandler {
                     }
                     ffmpegMjpeg = new Ffmpeg(this, format, config.get(CONFIG_FFMPEG_LOCATION).toString(), inOptions,
                             rtspUri, config.get(CONFIG_FFMPEG_MJPEG_ARGUMENTS).toString(),
-                            "http://127.0.0.1:" + serverPort + "/ipcamera.jpg", username, password);
+                            getServerUrl("127.0.0.1") + "/ipcamera.jpg", username, password);
+                    ffmpegMjpeg.useSharedProcess(ffmpegSupervisor);
                 }
                 if (ffmpegMjpeg != null) {
                     ffmpegMjpeg.startConverting();
@@ -1199,8 +1255,9 @@ public class IpCameraHandler extends BaseThingHandler {
                         inOptions = "-threads 1 -skip_frame nokey -hide_banner -loglevel warning";
                     }
                     ffmpegSnapshot = new Ffmpeg(this, format, config.get(CONFIG_FFMPEG_LOCATION).toString(), inOptions,
-                            rtspUri, "-an -vsync vfr -update 1", "http://127.0.0.1:" + serverPort + "/snapshot.jpg",
+                            rtspUri, "-an -vsync vfr -update 1", getServerUrl("127.0.0.1") + "/snapshot.jpg",
                             username, password);
+                    ffmpegSnapshot.useSharedProcess(ffmpegSupervisor);
                 }
                 if (ffmpegSnapshot != null) {
                     ffmpegSnapshot.startConverting();
@@ -1223,12 +1280,12 @@ public class IpCameraHandler extends BaseThingHandler {
 
     // Change alarms that are not counted as motion detecting.
     public void changeAlarmState(String thisAlarmsChannel, String state) {
-        updateState(thisAlarmsChannel, OnOffType.valueOf(state));
+        statePublisher.publish(thisAlarmsChannel, OnOffType.valueOf(state));
     }
 
     public void motionDetected(String thisAlarmsChannel) {
-        updateState(CHANNEL_LAST_MOTION_TYPE, new StringType(thisAlarmsChannel));
-        updateState(thisAlarmsChannel, OnOffType.valueOf("ON"));
+        statePublisher.publish(CHANNEL_LAST_MOTION_TYPE, new StringType(thisAlarmsChannel));
+        statePublisher.publish(thisAlarmsChannel, OnOffType.valueOf("ON"));
         motionDetected = true;
         if (streamingAutoFps) {
             startSnapshotPolling();
@@ -1250,7 +1307,7 @@ public class IpCameraHandler extends BaseThingHandler {
     }
 
     public void audioDetected() {
-        updateState(CHANNEL_AUDIO_ALARM, OnOffType.valueOf("ON"));
+        statePublisher.publish(CHANNEL_AUDIO_ALARM, OnOffType.valueOf("ON"));
         if (updateImageEvents.contains("3")) {
             if (!firstAudioAlarm) {
                 if (!snapshotUri.isEmpty()) {
@@ -1321,6 +1378,10 @@ public class IpCameraHandler extends BaseThingHandler {
 
     @Override
     public void handleCommand(ChannelUID channelUID, Command command) {
+        if (!"REFRESH".equals(command.toString())) {
+            // The item may now differ from what the camera last sent, so the cameras next state is always sent.
+            statePublisher.forget(channelUID.getId());
+        }
         if (command.toString() == "REFRESH") {
             switch (channelUID.getId()) {
                 case CHANNEL_PAN:
@@ -1367,6 +1428,17 @@ public class IpCameraHandler extends BaseThingHandler {
                         motionThreshold = Double.valueOf(command.toString());
                         motionThreshold = motionThreshold / 10000;
                     }
+                    if (snapshotMotion) {
+                        // The control is the percentage of the snapshot grid that has to change.
+                        snapshotMotionDetector.setThreshold(motionThreshold * 100);
+                        snapshotMotionDetector.reset();
+                        if (motionAlarmEnabled) {
+                            startSnapshotPolling();
+                        } else {
+                            stopSnapshotPolling();
+                        }
+                        return;
+                    }
                     setupFfmpegFormat("RTSPHELPER");
                     return;
                 case CHANNEL_GIF_FILENAME:
@@ -1395,7 +1467,8 @@ public class IpCameraHandler extends BaseThingHandler {
                             ffmpegHLS.setKeepAlive(-1);// will keep running till manually stopped.
                         }
                     } else {
-                        if (ffmpegHLS != null) {
+                        // HLS keeps running when it is needed for the MP4 preroll.
+                        if (ffmpegHLS != null && mp4Preroll == 0) {
                             ffmpegHLS.setKeepAlive(1);
                         }
                     }
@@ -1461,7 +1534,7 @@ public class IpCameraHandler extends BaseThingHandler {
                             return;
                         }
                         onvifCamera.setAbsolutePan(Float.valueOf(command.toString()));
-                        scheduledMovePTZ.schedule(runnableMovePTZ, 500, TimeUnit.MILLISECONDS);
+                        sharedScheduler.schedule(runnableMovePTZ, 500, TimeUnit.MILLISECONDS);
                     }
                     return;
                 case CHANNEL_TILT:
@@ -1486,7 +1559,7 @@ public class IpCameraHandler extends BaseThingHandler {
                             return;
                         }
                         onvifCamera.setAbsoluteTilt(Float.valueOf(command.toString()));
-                        scheduledMovePTZ.schedule(runnableMovePTZ, 500, TimeUnit.MILLISECONDS);
+                        sharedScheduler.schedule(runnableMovePTZ, 500, TimeUnit.MILLISECONDS);
                     }
                     return;
                 case CHANNEL_ZOOM:
@@ -1511,7 +1584,7 @@ public class IpCameraHandler extends BaseThingHandler {
                             return;
                         }
                         onvifCamera.setAbsoluteZoom(Float.valueOf(command.toString()));
-                        scheduledMovePTZ.schedule(runnableMovePTZ, 500, TimeUnit.MILLISECONDS);
+                        sharedScheduler.schedule(runnableMovePTZ, 500, TimeUnit.MILLISECONDS);
                     }
                     return;
             }
@@ -1579,7 +1652,7 @@ public class IpCameraHandler extends BaseThingHandler {
     };
 
     public void setChannelState(String channelToUpdate, State valueOf) {
-        updateState(channelToUpdate, valueOf);
+        statePublisher.publish(channelToUpdate, valueOf);
     }
 
     public String encodeSpecialChars(String text) {
@@ -1592,22 +1665,65 @@ public class IpCameraHandler extends BaseThingHandler {
         return encodedString;
     }
 
+    // True if this camera should hold the alarm stream that the other cameras on the NVR also use.
+    private boolean isNvrStreamOwner() {
+        NvrEventHub hub = nvrEventHub;
+        return hub == null || hub.isStreamOwner(this);
+    }
+
+    // Called by the brand handler on the connection holding the alarm stream, channelId is "" for NVR wide events.
+    public void nvrEventDecoded(String channelId, Object event) {
+        NvrEventHub hub = nvrEventHub;
+        if (hub != null) {
+            hub.dispatch(channelId, event);
+        } else {
+            nvrEventReceived(event);
+        }
+    }
+
+    public void nvrEventReceived(Object event) {
+        ChannelDuplexHandler handler = nvrEventHandler;
+        if (event instanceof HikvisionEvent && handler instanceof HikvisionHandler) {
+            ((HikvisionHandler) handler).handleEvent((HikvisionEvent) event);
+        } else if (event instanceof DahuaEvent && handler instanceof DahuaHandler) {
+            ((DahuaHandler) handler).handleEvent((DahuaEvent) event);
+        }
+    }
+
     void bringCameraOnline() {
         isOnline = true;
         updateStatus(ThingStatus.ONLINE);
         listOfOnlineCameraHandlers.add(this);
         listOfOnlineCameraUID.add(getThing().getUID().getId());
+        switch (thing.getThingTypeUID().getId()) {
+            case "HIKVISION":
+                nvrEventHandler = new HikvisionHandler(getHandle(), nvrChannel);
+                nvrEventHub = eventLoops.joinNvrEventHub(ipAddress + ":" + config.get(CONFIG_PORT), this, nvrChannel);
+                break;
+            case "DAHUA":
+                nvrEventHandler = new DahuaHandler(getHandle(), nvrChannel);
+                nvrEventHub = eventLoops.joinNvrEventHub(ipAddress + ":" + config.get(CONFIG_PORT), this, nvrChannel);
+                break;
+        }
         if (cameraConnectionJob != null) {
             cameraConnectionJob.cancel(false);
         }
 
-        if (preroll > 0 || updateImageEvents.contains("1")) {
+        if (preroll > 0 || updateImageEvents.contains("1") || (snapshotMotion && motionAlarmEnabled)) {
             snapshotPolling = true;
-            snapshotJob = snapshot.scheduleAtFixedRate(snapshotRunnable, 1000,
+            snapshotJob = sharedScheduler.scheduleAtFixedRate(snapshotRunnable, 1000,
                     Integer.parseInt(config.get(CONFIG_POLL_CAMERA_MS).toString()), TimeUnit.MILLISECONDS);
         }
 
-        pollCameraJob = pollCamera.scheduleWithFixedDelay(pollCameraRunnable, 1000, 8000, TimeUnit.MILLISECONDS);
+        pollCameraJob = sharedScheduler.scheduleWithFixedDelay(pollCameraRunnable, 1000, 8000, TimeUnit.MILLISECONDS);
+
+        if (mp4Preroll > 0) {
+            // The last few HLS segments are the preroll for MP4 recordings.
+            setupFfmpegFormat("HLS");
+            if (ffmpegHLS != null) {
+                ffmpegHLS.setKeepAlive(-1);
+            }
+        }
 
         if (!rtspUri.equals("")) {
             updateState(CHANNEL_RTSP_URL, new StringType(rtspUri));
@@ -1687,24 +1803,11 @@ public class IpCameraHandler extends BaseThingHandler {
     }
 
     boolean streamIsStopped(String url) {
-        byte indexInLists = 0;
-        lock.lock();
-        try {
-            indexInLists = (byte) listOfRequests.lastIndexOf(url);
-            if (indexInLists < 0) {
-                return true; // Stream not found, probably first run.
-            }
-            // Stream was found in list now to check status
-            // Status can be -1=closed, 0=closing (do not re-use channel), 1=open , 2=open
-            // and ok to reuse
-            else if (listOfChStatus.get(indexInLists) < 1) {
-                // may need to check if more than one is in the lists.
-                return true; // Stream was open, but not now.
-            }
-        } finally {
-            lock.unlock();
+        ChannelTracking tracker = channelTrackingMap.get(url);
+        if (tracker == null) {
+            return true; // Stream not found, probably first run.
         }
-        return false; // Stream is still open
+        return !tracker.isOpen(); // Stream was open, but not now.
     }
 
     Runnable snapshotRunnable = new Runnable() {
@@ -1721,6 +1824,9 @@ public class IpCameraHandler extends BaseThingHandler {
     };
 
     public void stopSnapshotPolling() {
+        if (snapshotMotion && motionAlarmEnabled) {
+            return; // The motion detector needs every snapshot.
+        }
         if (!streamingSnapshotMjpeg && preroll == 0 && !updateImageEvents.contains("1")) {
             snapshotPolling = false;
             if (snapshotJob != null) {
@@ -1740,11 +1846,11 @@ public class IpCameraHandler extends BaseThingHandler {
         }
         if (streamingSnapshotMjpeg || streamingAutoFps) {
             snapshotPolling = true;
-            snapshotJob = snapshot.scheduleAtFixedRate(snapshotRunnable, 200,
+            snapshotJob = sharedScheduler.scheduleAtFixedRate(snapshotRunnable, 200,
                     Integer.parseInt(config.get(CONFIG_POLL_CAMERA_MS).toString()), TimeUnit.MILLISECONDS);
-        } else if (updateImageEvents.contains("4")) { // During Motion Alarms
+        } else if (updateImageEvents.contains("4") || (snapshotMotion && motionAlarmEnabled)) { // During Motion Alarms
             snapshotPolling = true;
-            snapshotJob = snapshot.scheduleAtFixedRate(snapshotRunnable, 200,
+            snapshotJob = sharedScheduler.scheduleAtFixedRate(snapshotRunnable, 200,
                     Integer.parseInt(config.get(CONFIG_POLL_CAMERA_MS).toString()), TimeUnit.MILLISECONDS);
         }
     }
@@ -1787,7 +1893,7 @@ public class IpCameraHandler extends BaseThingHandler {
                     noAudioDetected();
                     break;
                 case "HIKVISION":
-                    if (streamIsStopped("/ISAPI/Event/notification/alertStream")) {
+                    if (isNvrStreamOwner() && streamIsStopped("/ISAPI/Event/notification/alertStream")) {
                         logger.info("The alarm stream was not running for camera {}, re-starting it now", ipAddress);
                         sendHttpGET("/ISAPI/Event/notification/alertStream");
                     }
@@ -1798,7 +1904,7 @@ public class IpCameraHandler extends BaseThingHandler {
                     break;
                 case "DAHUA":
                     // Check for alarms, channel for NVRs appears not to work at filtering.
-                    if (streamIsStopped("/cgi-bin/eventManager.cgi?action=attach&codes=[All]")) {
+                    if (isNvrStreamOwner() && streamIsStopped("/cgi-bin/eventManager.cgi?action=attach&codes=[All]")) {
                         logger.info("The alarm stream was not running for camera {}, re-starting it now", ipAddress);
                         sendHttpGET("/cgi-bin/eventManager.cgi?action=attach&codes=[All]");
                     }
@@ -1813,16 +1919,39 @@ public class IpCameraHandler extends BaseThingHandler {
             }
             if (ffmpegHLS != null) {
                 ffmpegHLS.checkKeepAlive();
+                if (!ffmpegHLS.getIsAlive() && hlsSegmentCache != null) {
+                    hlsSegmentCache.stop();
+                } else if (hlsSegmentCache != null) {
+                    // The supervisor may have restarted ffmpeg after the cache was stopped.
+                    hlsSegmentCache.start();
+                }
             }
-            if (listOfRequests.size() > 12) {
-                logger.debug(
-                        "There are {} channels being tracked, cleaning out old channels now to try and reduce this to 12 or below.",
-                        listOfRequests.size());
-                cleanChannels();
-            }
+            updateFfmpegHealth();
+            cleanChannels();
         }
     };
 
+    // The thing property only changes when a process starts, stops or fails, the uptime and cpu time are only traced.
+    private void updateFfmpegHealth() {
+        List<FfmpegSupervisor.ProcessHealth> processes = new ArrayList<FfmpegSupervisor.ProcessHealth>(
+                hlsSupervisor.getHealth());
+        processes.addAll(ffmpegSupervisor.getHealth());
+        StringBuilder summary = new StringBuilder(128);
+        for (FfmpegSupervisor.ProcessHealth processHealth : processes) {
+            logger.trace("ffmpeg {}", processHealth);
+            if (summary.length() > 0) {
+                summary.append(", ");
+            }
+            summary.append(processHealth.getSummary());
+        }
+        String health = summary.toString();
+        if (!health.equals(ffmpegHealth)) {
+            ffmpegHealth = health;
+            logger.debug("ffmpeg processes for camera {} are now:{}", ipAddress, health.isEmpty() ? "none" : health);
+            updateProperty(PROPERTY_FFMPEG_HEALTH, health);
+        }
+    }
+
     @Override
     public void initialize() {
         config = thing.getConfiguration();
@@ -1831,8 +1960,18 @@ public class IpCameraHandler extends BaseThingHandler {
         password = (config.get(CONFIG_PASSWORD) == null) ? "" : config.get(CONFIG_PASSWORD).toString();
         preroll = Integer.parseInt(config.get(CONFIG_GIF_PREROLL).toString());
         postroll = Integer.parseInt(config.get(CONFIG_GIF_POSTROLL).toString());
+        mp4Preroll = (config.get(CONFIG_MP4_PREROLL) == null) ? 0
+                : Integer.parseInt(config.get(CONFIG_MP4_PREROLL).toString());
+        if (snapshotHistory.capacity() != preroll + postroll) {
+            snapshotHistory.clear();
+            snapshotHistory = new SnapshotRingBuffer(preroll + postroll);
+        }
         updateImageEvents = config.get(CONFIG_IMAGE_UPDATE_EVENTS).toString();
         updateImageChannel = (boolean) config.get(CONFIG_UPDATE_IMAGE);
+        snapshotMotion = (config.get(CONFIG_SNAPSHOT_MOTION) == null) ? false
+                : (boolean) config.get(CONFIG_SNAPSHOT_MOTION);
+        snapshotMotionDetector
+                .setMask((config.get(CONFIG_MOTION_MASK) == null) ? "" : config.get(CONFIG_MOTION_MASK).toString());
 
         snapshotUri = (config.get(CONFIG_SNAPSHOT_URL_OVERRIDE) == null) ? ""
                 : getCorrectUrlFormat(config.get(CONFIG_SNAPSHOT_URL_OVERRIDE).toString());
@@ -1856,6 +1995,11 @@ public class IpCameraHandler extends BaseThingHandler {
 
         ffmpegOutputFolder = (config.get(CONFIG_FFMPEG_OUTPUT) == null) ? ""
                 : config.get(CONFIG_FFMPEG_OUTPUT).toString();
+        hlsSegmentCache = new HlsSegmentCache(ffmpegOutputFolder, sharedScheduler);
+        statePublisher.setWindowMs((config.get(CONFIG_STATE_UPDATE_MS) == null) ? 100
+                : Integer.parseInt(config.get(CONFIG_STATE_UPDATE_MS).toString()));
+        imagePublisher.setMinIntervalMs((config.get(CONFIG_IMAGE_MIN_INTERVAL_MS) == null) ? 1000
+                : Integer.parseInt(config.get(CONFIG_IMAGE_MIN_INTERVAL_MS).toString()));
 
         // Known cameras will connect quicker if we skip ONVIF questions.
         switch (thing.getThingTypeUID().getId()) {
@@ -1923,7 +2067,7 @@ public class IpCameraHandler extends BaseThingHandler {
                     "The Image channel is set to update more often than 8 seconds. This is not recommended. The Image channel is best used only for higher poll times. See the readme file on how to display the cameras picture for best results or use a higher poll time.");
         }
         // Waiting 3 seconds for ONVIF to discover the urls before running.
-        cameraConnectionJob = cameraConnection.scheduleWithFixedDelay(pollingCameraConnection, 6, 30, TimeUnit.SECONDS);
+        cameraConnectionJob = sharedScheduler.scheduleWithFixedDelay(pollingCameraConnection, 6, 30, TimeUnit.SECONDS);
     }
 
     // What the camera needs to re-connect if the initialize() is not called.
@@ -1939,39 +2083,52 @@ public class IpCameraHandler extends BaseThingHandler {
         onvifCamera.disconnect();
         if (pollCameraJob != null) {
             pollCameraJob.cancel(true);
-            pollCamera.shutdown();
-            pollCamera = Executors.newScheduledThreadPool(1);
             pollCameraJob = null;
         }
         if (snapshotJob != null) {
             snapshotJob.cancel(true);
-            snapshot.shutdown();
-            snapshot = Executors.newScheduledThreadPool(1);
             snapshotJob = null;
         }
         if (cameraConnectionJob != null) {
             cameraConnectionJob.cancel(true);
-            cameraConnection.shutdown();
-            cameraConnection = Executors.newScheduledThreadPool(1);
             cameraConnectionJob = null;
         }
 
         listOfOnlineCameraHandlers.remove(this);
         listOfOnlineCameraUID.remove(getThing().getUID().getId());
+        NvrEventHub hub = nvrEventHub;
+        if (hub != null) {
+            eventLoops.leaveNvrEventHub(hub, this);
+            nvrEventHub = null;
+        }
         // inform all group handlers that this camera has gone offline
         for (IpCameraGroupHandler handle : listOfGroupHandlers) {
             handle.cameraOffline(this);
         }
         basicAuth = ""; // clear out stored password hash
         useDigestAuth = false;
+        digestSession.clear();
+        // Send every state again once the camera is back online.
+        statePublisher.clear();
+        imagePublisher.clear();
+        snapshotMotionDetector.reset();
+        thumbnailCache.clear();
+        logger.debug("{} JPEGs were not sent to the Image channel as they were replaced or unchanged.",
+                imagePublisher.getSuppressed());
         startStreamServer(false);
         closeAllChannels();
 
+        // Stops the shared processes once, instead of once for each output that is removed below.
+        hlsSupervisor.stop();
+        ffmpegSupervisor.stop();
         if (ffmpegHLS != null) {
             ffmpegHLS.setKeepAlive(8);
             ffmpegHLS.stopConverting();
             ffmpegHLS = null;
         }
+        if (hlsSegmentCache != null) {
+            hlsSegmentCache.stop();
+        }
         if (ffmpegRecord != null) {
             ffmpegRecord.stopConverting();
             ffmpegRecord = null;
@@ -1993,20 +2150,15 @@ public class IpCameraHandler extends BaseThingHandler {
             ffmpegSnapshot = null;
         }
 
-        lock.lock();
-        try {
-            listOfRequests.clear();
-            listOfChannels.clear();
-            listOfChStatus.clear();
-            listOfReplies.clear();
-        } finally {
-            lock.unlock();
-        }
+        channelTrackingMap.clear();
     }
 
     @Override
     public void dispose() {
         restart();
+        snapshotHistory.clear();
+        keepGifSnapshots(new ArrayList<SnapshotFrame>(0));
+        currentSnapshot.getAndSet(SnapshotFrame.EMPTY).release();
     }
 
     public void setStreamServerHandler(StreamServerHandler streamServerHandler2) {
@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.smarthome.core.library.types.OnOffType;
+import org.eclipse.smarthome.core.types.State;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link ChannelStatePublisher} sends a cameras channel states to openHAB from the bindings state thread, so the
+ * Netty threads never wait on the event bus. A value that has not changed is not sent again, and values that change
+ * many times within the window are sent once with the latest value. An ON that is followed by an OFF inside the window
+ * is still sent, so short alarms are never lost.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class ChannelStatePublisher {
+    public interface Sink {
+        // Called from the state thread.
+        void publish(String channelId, State state);
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Sink sink;
+    private final ScheduledExecutorService executor;
+    private int windowMs;
+    // The newest value accepted for each channel, whether it has been sent yet or not.
+    private final Map<String, State> latest = new HashMap<String, State>(32);
+    private Map<String, State> pending = new LinkedHashMap<String, State>(8);
+    private boolean flushScheduled = false;
+    private long suppressed = 0;
+
+    public ChannelStatePublisher(Sink sink, ScheduledExecutorService executor, int windowMs) {
+        this.sink = sink;
+        this.executor = executor;
+        this.windowMs = windowMs;
+    }
+
+    public synchronized void publish(String channelId, State state) {
+        if (state.equals(latest.get(channelId))) {
+            suppressed++;
+            return;
+        }
+        latest.put(channelId, state);
+        State queued = pending.get(channelId);
+        if (queued instanceof OnOffType) {
+            // Send the earlier alarm state now so it is not replaced.
+            sendNow(pending);
+            pending = new LinkedHashMap<String, State>(8);
+        } else if (queued != null) {
+            suppressed++;
+        }
+        pending.put(channelId, state);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, windowMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void setWindowMs(int windowMs) {
+        this.windowMs = windowMs;
+    }
+
+    // The next value for the channel will be sent even if it has not changed, used when an item gets linked.
+    public synchronized void forget(String channelId) {
+        latest.remove(channelId);
+    }
+
+    public synchronized void clear() {
+        latest.clear();
+        pending.clear();
+    }
+
+    public synchronized long getSuppressed() {
+        return suppressed;
+    }
+
+    private void flush() {
+        Map<String, State> batch;
+        synchronized (this) {
+            flushScheduled = false;
+            batch = pending;
+            pending = new LinkedHashMap<String, State>(8);
+        }
+        send(batch);
+    }
+
+    private void sendNow(Map<String, State> batch) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                send(batch);
+            }
+        });
+    }
+
+    private void send(Map<String, State> batch) {
+        for (Map.Entry<String, State> entry : batch.entrySet()) {
+            try {
+                sink.publish(entry.getKey(), entry.getValue());
+            } catch (RuntimeException e) {
+                logger.warn("Could not update the channel {}:{}", entry.getKey(), e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+
+import io.netty.channel.Channel;
+
+/**
+ * The {@link ChannelTracking} holds one open connection to a camera, keyed in the handlers pool by the request path so
+ * it can be found, re-used and cleaned up without scanning lists.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class ChannelTracking {
+    public enum ChannelState {
+        OPEN, // Request in progress, do not re-use.
+        REUSABLE, // Open with a complete reply, ok to send the next request on it.
+        CLOSING, // Marked as closing, do not re-use but the channel still needs to be closed.
+        CLOSED
+    }
+
+    private final Channel channel;
+    private final String requestUrl;
+    private final AtomicReference<ChannelState> state = new AtomicReference<ChannelState>(ChannelState.OPEN);
+    private volatile String storedReply = "";
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    public ChannelTracking(Channel channel, String requestUrl) {
+        this.channel = channel;
+        this.requestUrl = requestUrl;
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    public String getRequestUrl() {
+        return requestUrl;
+    }
+
+    public ChannelState getState() {
+        return state.get();
+    }
+
+    public void setState(ChannelState newState) {
+        state.set(newState);
+        lastUsed = System.currentTimeMillis();
+    }
+
+    // Only one request can claim a re-usable channel, returns false if another thread got there first.
+    public boolean claimIfReusable() {
+        if (state.compareAndSet(ChannelState.REUSABLE, ChannelState.OPEN)) {
+            lastUsed = System.currentTimeMillis();
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isOpen() {
+        ChannelState current = state.get();
+        return (current == ChannelState.OPEN || current == ChannelState.REUSABLE) && channel.isOpen();
+    }
+
+    public long getIdleTime() {
+        return System.currentTimeMillis() - lastUsed;
+    }
+
+    public String getReply() {
+        return storedReply;
+    }
+
+    public void setReply(String replyToStore) {
+        storedReply = replyToStore;
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+
+/**
+ * The {@link DahuaEvent} is one Code=...;action=...;index=... record from a Dahua or Amcrest eventManager attach
+ * stream, as decoded by the {@link DahuaEventDecoder}.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class DahuaEvent {
+    public final String code;
+    public final String action;
+    // Starts at 0 for the first video channel or alarm input, -1 if the record had none.
+    public final int index;
+
+    public DahuaEvent(String code, String action, int index) {
+        this.code = code;
+        this.action = action;
+        this.index = index;
+    }
+
+    public boolean isStart() {
+        return "Start".equals(action);
+    }
+
+    public boolean isStop() {
+        return "Stop".equals(action);
+    }
+
+    @Override
+    public String toString() {
+        return "Code=" + code + ";action=" + action + ";index=" + index;
+    }
+}
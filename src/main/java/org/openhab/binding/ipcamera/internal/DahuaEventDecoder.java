@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ByteProcessor;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * The {@link DahuaEventDecoder} sits in front of the CommonCameraHandler and turns the body of an eventManager.cgi
+ * attach stream into {@link DahuaEvent} objects. Each line is looked at once as it arrives, so the cost is the length
+ * of the stream no matter how many event codes the handler knows about.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class DahuaEventDecoder extends ChannelDuplexHandler {
+    // A line longer than this is not an event record and is thrown away.
+    private static final int MAX_LINE_BYTES = 4096;
+    private boolean decoding = false;
+    private @Nullable ByteBuf cumulation = null;
+
+    // Only the attach stream is decoded, all other replies go on to the CommonCameraHandler untouched.
+    @Override
+    public void write(@Nullable ChannelHandlerContext ctx, @Nullable Object msg, @Nullable ChannelPromise promise)
+            throws Exception {
+        if (msg instanceof HttpRequest) {
+            decoding = ((HttpRequest) msg).uri().contains("eventManager.cgi?action=attach");
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    @Override
+    public void channelRead(@Nullable ChannelHandlerContext ctx, @Nullable Object msg) throws Exception {
+        if (ctx == null || msg == null) {
+            return;
+        }
+        if (!decoding || !(msg instanceof HttpContent)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        try {
+            ByteBuf buffer = cumulation;
+            if (buffer == null) {
+                buffer = ctx.alloc().buffer(1024);
+                cumulation = buffer;
+            }
+            buffer.writeBytes(((HttpContent) msg).content());
+            decodeLines(ctx, buffer);
+            if (msg instanceof LastHttpContent) {
+                releaseCumulation();
+            }
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private void decodeLines(ChannelHandlerContext ctx, ByteBuf buffer) {
+        int endOfLine;
+        while ((endOfLine = buffer.forEachByte(ByteProcessor.FIND_LF)) >= 0) {
+            int start = buffer.readerIndex();
+            DahuaEvent event = parseRecord(buffer, start, endOfLine);
+            buffer.readerIndex(endOfLine + 1);
+            if (event != null) {
+                ctx.fireChannelRead(event);
+            }
+        }
+        if (buffer.readableBytes() > MAX_LINE_BYTES) {
+            buffer.skipBytes(buffer.readableBytes());
+        }
+        buffer.discardSomeReadBytes();
+    }
+
+    // Reads Code=VideoMotion;action=Start;index=0 with any extra fields after it ignored.
+    private static @Nullable DahuaEvent parseRecord(ByteBuf buffer, int start, int end) {
+        if (end - start < 5 || buffer.getByte(start) != 'C' || buffer.getByte(start + 4) != '=') {
+            return null;
+        }
+        String code = "", action = "";
+        int index = -1;
+        int fieldStart = start;
+        while (fieldStart < end) {
+            int fieldEnd = buffer.indexOf(fieldStart, end, (byte) ';');
+            if (fieldEnd < 0) {
+                fieldEnd = end;
+            }
+            int equals = buffer.indexOf(fieldStart, fieldEnd, (byte) '=');
+            if (equals > fieldStart) {
+                String key = buffer.toString(fieldStart, equals - fieldStart, StandardCharsets.US_ASCII);
+                String value = buffer.toString(equals + 1, fieldEnd - equals - 1, StandardCharsets.US_ASCII).trim();
+                switch (key) {
+                    case "Code":
+                        code = value;
+                        break;
+                    case "action":
+                        action = value;
+                        break;
+                    case "index":
+                        try {
+                            index = Integer.parseInt(value);
+                        } catch (NumberFormatException e) {
+                            index = -1;
+                        }
+                        break;
+                    case "data":
+                        // JSON that can hold ';', nothing after it is needed.
+                        fieldEnd = end;
+                        break;
+                }
+            }
+            fieldStart = fieldEnd + 1;
+        }
+        if (code.isEmpty()) {
+            return null;
+        }
+        return new DahuaEvent(code, action, index);
+    }
+
+    private void releaseCumulation() {
+        ByteBuf buffer = cumulation;
+        if (buffer != null) {
+            buffer.release();
+            cumulation = null;
+        }
+    }
+
+    @Override
+    public void handlerRemoved(@Nullable ChannelHandlerContext ctx) {
+        releaseCumulation();
+    }
+}
@@ -18,6 +18,8 @@ import static org.openhab.binding.ipcamera.IpCameraBindingConstants.*;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
@@ -42,12 +44,71 @@ import io.netty.util.ReferenceCountUtil;
 
 @NonNullByDefault
 public class DahuaHandler extends ChannelDuplexHandler {
+    // Event codes that turn a motion style alarm channel on and off.
+    private static final Map<String, String> ALARM_CHANNELS = new HashMap<String, String>(16);
+    static {
+        ALARM_CHANNELS.put("VideoMotion", CHANNEL_MOTION_ALARM);
+        ALARM_CHANNELS.put("TakenAwayDetection", CHANNEL_ITEM_TAKEN);
+        ALARM_CHANNELS.put("LeftDetection", CHANNEL_ITEM_LEFT);
+        ALARM_CHANNELS.put("CrossLineDetection", CHANNEL_LINE_CROSSING_ALARM);
+        ALARM_CHANNELS.put("FaceDetection", CHANNEL_FACE_DETECTED);
+        ALARM_CHANNELS.put("ParkingDetection", CHANNEL_PARKING_ALARM);
+        ALARM_CHANNELS.put("CrossRegionDetection", CHANNEL_FIELD_DETECTION_ALARM);
+    }
     IpCameraHandler ipCameraHandler;
     String nvrChannel;
+    // Event index of this things video channel, the NVR_CHANNEL starts at 1 but the index starts at 0.
+    int channelIndex = 0;
 
     public DahuaHandler(IpCameraHandler handler, String nvrChannel) {
         ipCameraHandler = handler;
         this.nvrChannel = nvrChannel;
+        try {
+            channelIndex = Math.max(0, Integer.parseInt(nvrChannel.trim()) - 1);
+        } catch (NumberFormatException e) {
+            channelIndex = 0;
+        }
+    }
+
+    public void handleEvent(DahuaEvent event) {
+        ipCameraHandler.logger.trace("Dahua event:{}", event);
+        String alarmChannel = ALARM_CHANNELS.get(event.code);
+        if (alarmChannel != null) {
+            if (event.index != channelIndex) {
+                return;
+            }
+            if (event.isStart()) {
+                ipCameraHandler.motionDetected(alarmChannel);
+            } else if (event.isStop()) {
+                ipCameraHandler.noMotionDetected(alarmChannel);
+            }
+            return;
+        }
+        switch (event.code) {
+            case "AudioMutation":
+                if (event.index != channelIndex) {
+                    return;
+                }
+                if (event.isStart()) {
+                    ipCameraHandler.audioDetected();
+                } else if (event.isStop()) {
+                    ipCameraHandler.noAudioDetected();
+                }
+                break;
+            case "AlarmLocal":
+                // The index is the alarm input number and not the video channel.
+                String inputChannel = (event.index == 1) ? CHANNEL_EXTERNAL_ALARM_INPUT2
+                        : (event.index == 0) ? CHANNEL_EXTERNAL_ALARM_INPUT : "";
+                if (inputChannel.isEmpty()) {
+                    return;
+                }
+                if (event.isStart()) {
+                    ipCameraHandler.setChannelState(inputChannel, OnOffType.valueOf("ON"));
+                } else if (event.isStop()) {
+                    ipCameraHandler.setChannelState(inputChannel, OnOffType.valueOf("OFF"));
+                }
+                break;
+        }
     }
 
     // This handles the incoming http replies back from the camera.
@@ -56,6 +117,13 @@ public class DahuaHandler extends ChannelDuplexHandler {
         if (msg == null || ctx == null) {
             return;
         }
+        if (msg instanceof DahuaEvent) {
+            // From the attach stream, decoded by the DahuaEventDecoder and shared with the other cameras on the NVR.
+            DahuaEvent event = (DahuaEvent) msg;
+            boolean videoEvent = ALARM_CHANNELS.containsKey(event.code) || "AudioMutation".equals(event.code);
+            ipCameraHandler.nvrEventDecoded(videoEvent ? String.valueOf(event.index + 1) : "", event);
+            return;
+        }
         String content = null;
         try {
             content = msg.toString();
@@ -68,77 +136,17 @@ public class DahuaHandler extends ChannelDuplexHandler {
             } else if (content.contains("table.MotionDetect[" + nvrChannel + "].Enable=false")) {
                 ipCameraHandler.setChannelState(CHANNEL_ENABLE_MOTION_ALARM, OnOffType.valueOf("OFF"));
             }
-            // Handle motion alarm
-            if (content.contains("Code=VideoMotion;action=Start;index=0")) {
-                ipCameraHandler.motionDetected(CHANNEL_MOTION_ALARM);
-            } else if (content.contains("Code=VideoMotion;action=Stop;index=0")) {
-                ipCameraHandler.noMotionDetected(CHANNEL_MOTION_ALARM);
-            }
-            // Handle item taken alarm
-            if (content.contains("Code=TakenAwayDetection;action=Start;index=0")) {
-                ipCameraHandler.motionDetected(CHANNEL_ITEM_TAKEN);
-            } else if (content.contains("Code=TakenAwayDetection;action=Stop;index=0")) {
-                ipCameraHandler.noMotionDetected(CHANNEL_ITEM_TAKEN);
-            }
-            // Handle item left alarm
-            if (content.contains("Code=LeftDetection;action=Start;index=0")) {
-                ipCameraHandler.motionDetected(CHANNEL_ITEM_LEFT);
-            } else if (content.contains("Code=LeftDetection;action=Stop;index=0")) {
-                ipCameraHandler.noMotionDetected(CHANNEL_ITEM_LEFT);
-            }
-            // Handle CrossLineDetection alarm
-            if (content.contains("Code=CrossLineDetection;action=Start;index=0")) {
-                ipCameraHandler.motionDetected(CHANNEL_LINE_CROSSING_ALARM);
-            } else if (content.contains("Code=CrossLineDetection;action=Stop;index=0")) {
-                ipCameraHandler.noMotionDetected(CHANNEL_LINE_CROSSING_ALARM);
-            }
             // determine if the audio alarm is turned on or off.
             if (content.contains("table.AudioDetect[0].MutationDetect=true")) {
                 ipCameraHandler.setChannelState(CHANNEL_ENABLE_AUDIO_ALARM, OnOffType.valueOf("ON"));
             } else if (content.contains("table.AudioDetect[0].MutationDetect=false")) {
                 ipCameraHandler.setChannelState(CHANNEL_ENABLE_AUDIO_ALARM, OnOffType.valueOf("OFF"));
             }
-            // Handle AudioMutation alarm
-            if (content.contains("Code=AudioMutation;action=Start;index=0")) {
-                ipCameraHandler.audioDetected();
-            } else if (content.contains("Code=AudioMutation;action=Stop;index=0")) {
-                ipCameraHandler.noAudioDetected();
-            }
             // Handle AudioMutationThreshold alarm
             if (content.contains("table.AudioDetect[0].MutationThreold=")) {
                 String value = ipCameraHandler.returnValueFromString(content, "table.AudioDetect[0].MutationThreold=");
                 ipCameraHandler.setChannelState(CHANNEL_THRESHOLD_AUDIO_ALARM, PercentType.valueOf(value));
             }
-            // Handle FaceDetection alarm
-            if (content.contains("Code=FaceDetection;action=Start;index=0")) {
-                ipCameraHandler.motionDetected(CHANNEL_FACE_DETECTED);
-            } else if (content.contains("Code=FaceDetection;action=Stop;index=0")) {
-                ipCameraHandler.noMotionDetected(CHANNEL_FACE_DETECTED);
-            }
-            // Handle ParkingDetection alarm
-            if (content.contains("Code=ParkingDetection;action=Start;index=0")) {
-                ipCameraHandler.motionDetected(CHANNEL_PARKING_ALARM);
-            } else if (content.contains("Code=ParkingDetection;action=Stop;index=0")) {
-                ipCameraHandler.noMotionDetected(CHANNEL_PARKING_ALARM);
-            }
-            // Handle CrossRegionDetection alarm
-            if (content.contains("Code=CrossRegionDetection;action=Start;index=0")) {
-                ipCameraHandler.motionDetected(CHANNEL_FIELD_DETECTION_ALARM);
-            } else if (content.contains("Code=CrossRegionDetection;action=Stop;index=0")) {
-                ipCameraHandler.noMotionDetected(CHANNEL_FIELD_DETECTION_ALARM);
-            }
-            // Handle External Input alarm
-            if (content.contains("Code=AlarmLocal;action=Start;index=0")) {
-                ipCameraHandler.setChannelState(CHANNEL_EXTERNAL_ALARM_INPUT, OnOffType.valueOf("ON"));
-            } else if (content.contains("Code=AlarmLocal;action=Stop;index=0")) {
-                ipCameraHandler.setChannelState(CHANNEL_EXTERNAL_ALARM_INPUT, OnOffType.valueOf("OFF"));
-            }
-            // Handle External Input alarm2
-            if (content.contains("Code=AlarmLocal;action=Start;index=1")) {
-                ipCameraHandler.setChannelState(CHANNEL_EXTERNAL_ALARM_INPUT2, OnOffType.valueOf("ON"));
-            } else if (content.contains("Code=AlarmLocal;action=Stop;index=1")) {
-                ipCameraHandler.setChannelState(CHANNEL_EXTERNAL_ALARM_INPUT2, OnOffType.valueOf("OFF"));
-            }
             // CrossLineDetection alarm on/off
             if (content.contains("table.VideoAnalyseRule[0][1].Enable=true")) {
                 ipCameraHandler.setChannelState(CHANNEL_ENABLE_LINE_CROSSING_ALARM, OnOffType.valueOf("ON"));
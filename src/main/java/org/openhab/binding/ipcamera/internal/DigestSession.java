@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+
+/**
+ * The {@link DigestSession} remembers the last digest challenge a camera gave, so every request after the first can be
+ * signed before it is sent instead of waiting for a 401. HA1 only changes with the realm so it is only hashed once.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class DigestSession {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                // Every JVM has to provide MD5.
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+    private String realm = "";
+    private String nonce = "";
+    private String opaque = "";
+    private String qop = "";
+    private String ha1 = "";
+    private String username = "";
+    private int nonceCount = 0;
+
+    // Returns true if the nonce is new, a repeated nonce that was not reported as stale means the login was refused.
+    public synchronized boolean update(String username, String password, String realm, String nonce, String opaque,
+            String qop) {
+        if (!realm.equals(this.realm) || !username.equals(this.username) || ha1.isEmpty()) {
+            ha1 = md5Hex(username + ":" + realm + ":" + password);
+        }
+        this.username = username;
+        this.realm = realm;
+        this.opaque = opaque;
+        this.qop = qop;
+        if (nonce.equals(this.nonce)) {
+            return false;
+        }
+        this.nonce = nonce;
+        nonceCount = 0;
+        return true;
+    }
+
+    public synchronized boolean isReady() {
+        return !nonce.isEmpty() && !ha1.isEmpty();
+    }
+
+    public synchronized String getNonce() {
+        return nonce;
+    }
+
+    public synchronized void clear() {
+        realm = nonce = opaque = qop = ha1 = username = "";
+        nonceCount = 0;
+    }
+
+    // Returns what goes after "Digest " in the Authorization header, each call uses the next nonce count.
+    public synchronized String authorize(String httpMethod, String requestURI) {
+        String nc = toHex8(++nonceCount);
+        String cnonce = Integer.toHexString(ThreadLocalRandom.current().nextInt());
+        String ha2 = md5Hex(httpMethod + ":" + requestURI);
+        String response;
+        if (qop.isEmpty()) {
+            response = md5Hex(ha1 + ":" + nonce + ":" + ha2);
+        } else {
+            response = md5Hex(ha1 + ":" + nonce + ":" + nc + ":" + cnonce + ":" + qop + ":" + ha2);
+        }
+        StringBuilder digest = new StringBuilder(320);
+        digest.append("username=\"").append(username).append("\", realm=\"").append(realm).append("\", nonce=\"")
+                .append(nonce).append("\", uri=\"").append(requestURI).append("\"");
+        if (!qop.isEmpty()) {
+            digest.append(", cnonce=\"").append(cnonce).append("\", nc=").append(nc).append(", qop=\"").append(qop)
+                    .append("\"");
+        }
+        digest.append(", response=\"").append(response).append("\"");
+        if (!opaque.isEmpty()) {
+            digest.append(", opaque=\"").append(opaque).append("\"");
+        }
+        return digest.toString();
+    }
+
+    private static String toHex8(int value) {
+        char[] chars = new char[8];
+        for (int i = 7; i >= 0; i--) {
+            chars[i] = HEX[(value >>> ((7 - i) * 4)) & 0xF];
+        }
+        return new String(chars);
+    }
+
+    private static String md5Hex(String toHash) {
+        byte[] hash = MD5.get().digest(toHash.getBytes(StandardCharsets.UTF_8));
+        char[] chars = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            chars[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[hash[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -19,6 +19,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.List;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
@@ -28,6 +30,8 @@ import org.openhab.binding.ipcamera.handler.IpCameraHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.netty.buffer.ByteBuf;
+
 /**
  * The {@link Ffmpeg} class is responsible for handling multiple ffmpeg conversions which are used for many tasks
  *
@@ -36,15 +40,36 @@ import org.slf4j.LoggerFactory;
  */
 
 @NonNullByDefault
-public class Ffmpeg {
+public class Ffmpeg implements FfmpegProgressReader.Listener {
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private IpCameraHandler ipCameraHandler;
     private @Nullable Process process = null;
     private String ffmpegCommand = "", format = "";
+    private String ffmpegLocation, inputArguments, input, outArguments, output;
+    // When set, this output is added to the cameras one shared ffmpeg process instead of starting its own.
+    private @Nullable FfmpegSupervisor supervisor = null;
+    // Motion is when MOTION_EVENTS scene changes arrive within MOTION_WINDOW_MS, and it ends once none have arrived for
+    // MOTION_QUIET_MS. The times are when the events were read, as the progress blocks that check them have no pts.
+    private static final int MOTION_EVENTS = 5;
+    private static final long MOTION_WINDOW_MS = 1000;
+    private static final long MOTION_QUIET_MS = 1000;
+    private int countOfMotions = 0;
+    private long firstMotionAt = 0;
+    private long lastMotionAt = 0;
     private String[] commandArray;
     private StreamRunning streamRunning = new StreamRunning();
     private int keepAlive = 8;
     private boolean running = false;
+    // Written to ffmpegs stdin when the input is "-".
+    private @Nullable StdinFeed stdinFeed = null;
+
+    public interface StdinFeed {
+        // Runs on its own thread once ffmpeg has started, the stream is closed when this returns.
+        void writeTo(OutputStream stdin) throws IOException;
+
+        // Called when the feed has finished or if ffmpeg never started, so anything held can be released.
+        void release();
+    }
 
     public void setKeepAlive(int seconds) {
         if (seconds == -1) {
@@ -76,53 +101,209 @@ public class Ffmpeg {
             // will not work for https: but currently binding does not use https
             altInput = input.substring(0, 7) + credentials + input.substring(7);
         }
+        this.ffmpegLocation = ffmpegLocation;
+        this.inputArguments = inputArguments;
+        this.input = altInput;
+        this.outArguments = outArguments;
+        this.output = output;
         ffmpegCommand = ffmpegLocation + " " + inputArguments + " -i " + altInput + " " + outArguments + " " + output;
         commandArray = ffmpegCommand.trim().split("\\s+");
     }
 
+    public void useSharedProcess(FfmpegSupervisor supervisor) {
+        this.supervisor = supervisor;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public String getFfmpegLocation() {
+        return ffmpegLocation;
+    }
+
+    public String getInputArguments() {
+        return inputArguments;
+    }
+
+    public String getInput() {
+        return input;
+    }
+
+    public String getOutArguments() {
+        return outArguments;
+    }
+
+    public String getOutput() {
+        return output;
+    }
+
+    // Motion and audio alarms from the progress and metadata ffmpeg writes to stdout, the shared process gives these to
+    // every output.
+    @Override
+    public void analysisEvent(FfmpegAnalysisEvent event) {
+        if (!format.equals("RTSPHELPER")) {
+            return;
+        }
+        switch (event.type) {
+            case SCENE_SCORE:
+                if (countOfMotions == 0 || event.receivedAt - lastMotionAt >= MOTION_QUIET_MS
+                        || (countOfMotions < MOTION_EVENTS && event.receivedAt - firstMotionAt > MOTION_WINDOW_MS)) {
+                    // Too far apart to count together, so this one starts a new count.
+                    countOfMotions = 0;
+                    firstMotionAt = event.receivedAt;
+                }
+                lastMotionAt = event.receivedAt;
+                if (++countOfMotions >= MOTION_EVENTS) {
+                    countOfMotions = MOTION_EVENTS;
+                    ipCameraHandler.motionDetected(CHANNEL_FFMPEG_MOTION_ALARM);
+                }
+                break;
+            case SILENCE_START:
+                ipCameraHandler.noAudioDetected();
+                break;
+            case SILENCE_END:
+                ipCameraHandler.audioDetected();
+                break;
+        }
+    }
+
+    @Override
+    public void progress(long frame) {
+        if (!format.equals("RTSPHELPER")) {
+            return;
+        }
+        // Called about every half a second, so motion ends within that of MOTION_QUIET_MS passing.
+        if (countOfMotions > 0 && System.currentTimeMillis() - lastMotionAt >= MOTION_QUIET_MS) {
+            if (countOfMotions >= MOTION_EVENTS) {
+                ipCameraHandler.noMotionDetected(CHANNEL_FFMPEG_MOTION_ALARM);
+            }
+            countOfMotions = 0;
+        }
+    }
+
+    public synchronized void setStdinFeed(StdinFeed feed) {
+        StdinFeed older = stdinFeed;
+        if (older != null) {
+            older.release();
+        }
+        stdinFeed = feed;
+    }
+
+    // Takes ownership of the frames, the input needs to be "-" with an image2pipe input format.
+    public void setInputFrames(final List<SnapshotFrame> frames) {
+        setStdinFeed(new StdinFeed() {
+            @Override
+            public void writeTo(OutputStream stdin) throws IOException {
+                for (SnapshotFrame frame : frames) {
+                    ByteBuf jpeg = frame.retainedSlice();
+                    if (jpeg != null) {
+                        try {
+                            jpeg.readBytes(stdin, jpeg.readableBytes());
+                        } finally {
+                            jpeg.release();
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void release() {
+                SnapshotRingBuffer.releaseAll(frames);
+            }
+        });
+    }
+
+    private synchronized @Nullable StdinFeed takeStdinFeed() {
+        StdinFeed feed = stdinFeed;
+        stdinFeed = null;
+        return feed;
+    }
+
+    // Writes on its own thread as ffmpeg may block on stdin until stderr is read.
     @NonNullByDefault
-    private class StreamRunning extends Thread {
-        public int countOfMotions = 0;
+    private class StdinWriter extends Thread {
+        private final OutputStream stdin;
+        private final StdinFeed feed;
+
+        StdinWriter(OutputStream stdin, StdinFeed feed) {
+            this.stdin = stdin;
+            this.feed = feed;
+        }
+
+        @Override
+        public void run() {
+            try {
+                feed.writeTo(stdin);
+            } catch (IOException e) {
+                logger.debug("ffmpeg {} stopped reading its input:{}", format, e.getMessage());
+            } finally {
+                feed.release();
+                try {
+                    // ffmpeg finishes the file once stdin is closed.
+                    stdin.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    @NonNullByDefault
+    private class ProgressReader extends Thread {
+        private final InputStream stdout;
+
+        ProgressReader(InputStream stdout) {
+            this.stdout = stdout;
+        }
 
+        @Override
+        public void run() {
+            try {
+                new FfmpegProgressReader().read(stdout, Ffmpeg.this);
+            } catch (IOException e) {
+                logger.debug("Stopped reading the ffmpeg {} progress:{}", format, e.getMessage());
+            }
+        }
+    }
+
+    @NonNullByDefault
+    private class StreamRunning extends Thread {
         @Override
         public void run() {
             try {
                 process = Runtime.getRuntime().exec(commandArray);
                 if (process != null) {
+                    if (format.equals("RTSPHELPER")) {
+                        new ProgressReader(process.getInputStream()).start();
+                    }
+                    StdinFeed feed = takeStdinFeed();
+                    if (feed == null) {
+                        process.getOutputStream().close();
+                    } else {
+                        new StdinWriter(process.getOutputStream(), feed).start();
+                    }
                     InputStream errorStream = process.getErrorStream();
                     InputStreamReader errorStreamReader = new InputStreamReader(errorStream);
                     BufferedReader bufferedReader = new BufferedReader(errorStreamReader);
                     String line = null;
+                    String lastLine = "";
+                    ipCameraHandler.getFfmpegSupervisor().track(format, process);
                     while ((line = bufferedReader.readLine()) != null) {
-                        if (format.equals("RTSPHELPER")) {
-                            logger.debug("{}", line);
-                            if (line.contains("lavfi.")) {
-                                if (countOfMotions == 4) {
-                                    ipCameraHandler.motionDetected(CHANNEL_FFMPEG_MOTION_ALARM);
-                                } else {
-                                    countOfMotions++;
-                                }
-                            } else if (line.contains("speed=")) {
-                                if (countOfMotions > 0) {
-                                    countOfMotions--;
-                                    countOfMotions--;
-                                    if (countOfMotions <= 0) {
-                                        ipCameraHandler.noMotionDetected(CHANNEL_FFMPEG_MOTION_ALARM);
-                                    }
-                                }
-                            } else if (line.contains("silence_start")) {
-                                ipCameraHandler.noAudioDetected();
-                            } else if (line.contains("silence_end")) {
-                                ipCameraHandler.audioDetected();
-                            }
-                        } else {
-                            logger.debug("{}", line);
-                        }
+                        logger.debug("{}", line);
+                        lastLine = line;
                     }
+                    ipCameraHandler.getFfmpegSupervisor().untrack(format, process.waitFor(), lastLine);
                 }
             } catch (IOException e) {
                 logger.error("{}", e.toString());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             } finally {
+                // Only left over if ffmpeg failed to start.
+                StdinFeed unused = takeStdinFeed();
+                if (unused != null) {
+                    unused.release();
+                }
                 switch (format) {
                     case "GIF":
                         try {
@@ -151,19 +332,25 @@ public class Ffmpeg {
     }
 
     public void startConverting() {
-        if (!streamRunning.isAlive()) {
+        FfmpegSupervisor shared = supervisor;
+        if (shared != null) {
+            boolean starting = !running;
+            if (starting || !shared.isAlive()) {
+                running = true;
+                // Restarts the shared process with this output added, or after it has stopped.
+                shared.addOutput(this);
+            }
+            if (starting && format.equals("HLS")) {
+                ipCameraHandler.setChannelState(CHANNEL_START_STREAM, OnOffType.valueOf("ON"));
+            }
+        } else if (!streamRunning.isAlive()) {
             streamRunning = new StreamRunning();
             logger.debug("Starting ffmpeg with this command now:{}", ffmpegCommand);
             streamRunning.start();
             running = true;
             if (format.equals("HLS")) {
+                // Requests wait in the HlsSegmentCache for the files, so there is no need to wait here.
                 ipCameraHandler.setChannelState(CHANNEL_START_STREAM, OnOffType.valueOf("ON"));
-                if (keepAlive > -1) {
-                    try {
-                        Thread.sleep(7000); // Used for on demand HLS to give ffmpeg time to produce the files needed.
-                    } catch (InterruptedException e) {
-                    }
-                }
             }
         }
         if (keepAlive != -1) {
@@ -172,24 +359,23 @@ public class Ffmpeg {
     }
 
     public boolean getIsAlive() {
-        return running;
+        FfmpegSupervisor shared = supervisor;
+        return running && (shared == null || shared.isAlive());
     }
 
     public void stopConverting() {
-        if (streamRunning.isAlive()) {
+        FfmpegSupervisor shared = supervisor;
+        if (shared != null ? running : streamRunning.isAlive()) {
             logger.debug("Stopping ffmpeg {} now", format);
             running = false;
-            if (process != null) {
+            if (shared != null) {
+                shared.removeOutput(this);
+            } else if (process != null) {
                 process.destroyForcibly();
             }
             if (format.equals("HLS")) {
-                if (keepAlive == -1) {
-                    logger.warn("HLS stopped when Stream should be running non stop, restarting HLS now.");
-                    startConverting();
-                    return;
-                } else {
-                    ipCameraHandler.setChannelState(CHANNEL_START_STREAM, OnOffType.valueOf("OFF"));
-                }
+                // If ffmpeg stops by itself the FfmpegSupervisor restarts it, so this is only reached on purpose.
+                ipCameraHandler.setChannelState(CHANNEL_START_STREAM, OnOffType.valueOf("OFF"));
             }
             keepAlive = 8;
         }
@@ -0,0 +1,51 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+
+/**
+ * The {@link FfmpegAnalysisEvent} is one scene change or silence result from the motion and audio alarm filters, as
+ * read by the {@link FfmpegProgressReader}.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class FfmpegAnalysisEvent {
+    public enum Type {
+        SCENE_SCORE,
+        SILENCE_START,
+        SILENCE_END
+    }
+
+    public final Type type;
+    // The scene score from 0 to 1, or for silence the stream time in seconds it started or ended.
+    public final double value;
+    // Stream time in seconds of the frame the event came from, NaN if ffmpeg did not give one.
+    public final double ptsTime;
+    public final long receivedAt;
+
+    public FfmpegAnalysisEvent(Type type, double value, double ptsTime) {
+        this.type = type;
+        this.value = value;
+        this.ptsTime = ptsTime;
+        this.receivedAt = System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+        return type + "=" + value + " pts_time:" + ptsTime;
+    }
+}
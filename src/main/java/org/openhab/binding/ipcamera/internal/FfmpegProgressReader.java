@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+
+/**
+ * The {@link FfmpegProgressReader} reads the key=value lines ffmpeg writes to stdout with -progress pipe:1 and from
+ * the metadata=print:file=- filters. Lines are matched as bytes in one reused buffer, so only an event that is
+ * found creates an object. The log on stderr is not needed, so this works with any loglevel or locale.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class FfmpegProgressReader {
+    public interface Listener {
+        // Called once per -progress block, about every half a second, with the frames ffmpeg has read so far.
+        void progress(long frame);
+
+        void analysisEvent(FfmpegAnalysisEvent event);
+    }
+
+    private static final byte[] PROGRESS = bytes("progress=");
+    private static final byte[] FRAME = bytes("frame=");
+    // The metadata filter starts each frame with "frame:1    pts:2048    pts_time:0.08".
+    private static final byte[] METADATA_FRAME = bytes("frame:");
+    private static final byte[] PTS_TIME = bytes("pts_time:");
+    private static final byte[] SCENE_SCORE = bytes("lavfi.scene_score=");
+    private static final byte[] SILENCE_START = bytes("lavfi.silence_start=");
+    private static final byte[] SILENCE_END = bytes("lavfi.silence_end=");
+    private final byte[] buffer = new byte[4096];
+    private long frame = 0;
+    private double ptsTime = Double.NaN;
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Blocks until ffmpeg closes stdout.
+    public void read(InputStream stdout, Listener listener) throws IOException {
+        int filled = 0;
+        while (true) {
+            int read = stdout.read(buffer, filled, buffer.length - filled);
+            if (read < 0) {
+                return;
+            }
+            int scanFrom = filled;
+            filled += read;
+            int lineStart = 0;
+            for (int i = scanFrom; i < filled; i++) {
+                if (buffer[i] == '\n') {
+                    int lineEnd = (i > lineStart && buffer[i - 1] == '\r') ? i - 1 : i;
+                    parseLine(lineStart, lineEnd, listener);
+                    lineStart = i + 1;
+                }
+            }
+            filled -= lineStart;
+            System.arraycopy(buffer, lineStart, buffer, 0, filled);
+            if (filled == buffer.length) {
+                // No line is this long, so the output is not what was expected.
+                filled = 0;
+            }
+        }
+    }
+
+    private void parseLine(int from, int to, Listener listener) {
+        if (startsWith(from, to, PROGRESS)) {
+            listener.progress(frame);
+        } else if (startsWith(from, to, FRAME)) {
+            frame = (long) parseNumber(from + FRAME.length, to);
+        } else if (startsWith(from, to, METADATA_FRAME)) {
+            int at = indexOf(from, to, PTS_TIME);
+            if (at >= 0) {
+                int end = at + PTS_TIME.length;
+                while (end < to && buffer[end] != ' ') {
+                    end++;
+                }
+                ptsTime = parseNumber(at + PTS_TIME.length, end);
+            }
+        } else if (startsWith(from, to, SCENE_SCORE)) {
+            listener.analysisEvent(new FfmpegAnalysisEvent(FfmpegAnalysisEvent.Type.SCENE_SCORE,
+                    parseNumber(from + SCENE_SCORE.length, to), ptsTime));
+        } else if (startsWith(from, to, SILENCE_START)) {
+            listener.analysisEvent(new FfmpegAnalysisEvent(FfmpegAnalysisEvent.Type.SILENCE_START,
+                    parseNumber(from + SILENCE_START.length, to), ptsTime));
+        } else if (startsWith(from, to, SILENCE_END)) {
+            listener.analysisEvent(new FfmpegAnalysisEvent(FfmpegAnalysisEvent.Type.SILENCE_END,
+                    parseNumber(from + SILENCE_END.length, to), ptsTime));
+        }
+    }
+
+    private boolean startsWith(int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer[from + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(int from, int to, byte[] search) {
+        for (int i = from; i <= to - search.length; i++) {
+            if (startsWith(i, to, search)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Reads numbers such as 12, -0.5 and 0.0123, returns NaN for N/A or anything else.
+    private double parseNumber(int from, int to) {
+        boolean negative = from < to && buffer[from] == '-';
+        int i = negative ? from + 1 : from;
+        if (i >= to) {
+            return Double.NaN;
+        }
+        double value = 0;
+        double scale = 0;
+        for (; i < to; i++) {
+            byte b = buffer[i];
+            if (b >= '0' && b <= '9') {
+                if (scale == 0) {
+                    value = value * 10 + (b - '0');
+                } else {
+                    value += (b - '0') * scale;
+                    scale /= 10;
+                }
+            } else if (b == '.' && scale == 0) {
+                scale = 0.1;
+            } else {
+                return Double.NaN;
+            }
+        }
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,378 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link FfmpegSupervisor} owns one of a cameras shared ffmpeg processes. The outputs given to it share the
+ * process, so the camera sees fewer RTSP connections and each frame is only decoded once. ffmpeg can not add an output
+ * to a running process, so it is started again with the new list of outputs when one is added or removed. A camera has
+ * one for the long running HLS and alarm outputs and another for the MJPEG and snapshot outputs that come and go with
+ * the viewers, so a viewer never cuts off HLS. If a process stops on its own it is restarted after a delay that doubles
+ * each time, until it reports frames again. The one off GIF and MP4 processes are tracked so their health is reported.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class FfmpegSupervisor {
+    private static final long FIRST_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 64000;
+    // USER_HZ, the unit of the cpu times in /proc/[pid]/stat, is 100 on the Linux builds openHAB runs on.
+    private static final long CLOCK_TICKS_PER_SECOND = 100;
+
+    public static class ProcessHealth {
+        public final String name;
+        public final long pid;
+        public final long startedAt = System.currentTimeMillis();
+        public final int restarts;
+        public String lastError = "";
+
+        ProcessHealth(String name, long pid, int restarts) {
+            this.name = name;
+            this.pid = pid;
+            this.restarts = restarts;
+        }
+
+        public long getUptimeMs() {
+            return System.currentTimeMillis() - startedAt;
+        }
+
+        // Returns -1 when the OS does not give the cpu time of other processes.
+        public long getCpuMs() {
+            if (pid < 0) {
+                return -1;
+            }
+            try {
+                String stat = new String(Files.readAllBytes(new File("/proc/" + pid + "/stat").toPath()),
+                        StandardCharsets.US_ASCII);
+                // The process name can hold spaces, so count the fields from after it. utime and stime are 14 and 15.
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+                return ticks * 1000 / CLOCK_TICKS_PER_SECOND;
+            } catch (IOException | RuntimeException e) {
+                return -1;
+            }
+        }
+
+        // Leaves out the uptime and cpu time, so it only changes when the process does.
+        public String getSummary() {
+            return name + " pid:" + pid + " restarts:" + restarts
+                    + (lastError.isEmpty() ? "" : " last error:" + lastError);
+        }
+
+        @Override
+        public String toString() {
+            return name + " pid:" + pid + " uptime:" + getUptimeMs() / 1000 + "s cpu:" + getCpuMs() + "ms restarts:"
+                    + restarts + (lastError.isEmpty() ? "" : " last error:" + lastError);
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final ScheduledExecutorService scheduler;
+    private final String name;
+    private final List<Ffmpeg> outputs = new ArrayList<Ffmpeg>(4);
+    private final Map<String, ProcessHealth> health = new LinkedHashMap<String, ProcessHealth>(4);
+    private @Nullable Process process = null;
+    private @Nullable ScheduledFuture<?> restartJob = null;
+    // Changes each time the shared process is started, so the reader of an old process is ignored.
+    private int generation = 0;
+    private boolean ready = false;
+    private long backoffMs = FIRST_BACKOFF_MS;
+    private int crashes = 0;
+    private String lastError = "";
+
+    // The name is used for the health and logs of the shared process.
+    public FfmpegSupervisor(ScheduledExecutorService scheduler, String name) {
+        this.scheduler = scheduler;
+        this.name = name;
+    }
+
+    public synchronized void addOutput(Ffmpeg output) {
+        if (outputs.contains(output) && (isAlive() || restartJob != null)) {
+            // A restart is already waiting for its backoff.
+            return;
+        }
+        outputs.remove(output);
+        outputs.add(output);
+        restart();
+    }
+
+    public synchronized void removeOutput(Ffmpeg output) {
+        if (outputs.remove(output)) {
+            restart();
+        }
+    }
+
+    public synchronized boolean isAlive() {
+        Process current = process;
+        return current != null && current.isAlive();
+    }
+
+    public synchronized void stop() {
+        outputs.clear();
+        restart();
+        crashes = 0;
+        lastError = "";
+        backoffMs = FIRST_BACKOFF_MS;
+    }
+
+    // Used by the one off GIF and MP4 processes that are not shared.
+    public synchronized void track(String name, Process started) {
+        health.put(name, new ProcessHealth(name, pidOf(started), 0));
+    }
+
+    public synchronized void untrack(String name, int exitCode, String lastLine) {
+        ProcessHealth finished = health.remove(name);
+        if (finished != null) {
+            if (exitCode != 0) {
+                finished.lastError = lastLine;
+            }
+            logger.debug("ffmpeg {} has finished with exit code {}, {}", name, exitCode, finished);
+        }
+    }
+
+    public synchronized List<ProcessHealth> getHealth() {
+        return new ArrayList<ProcessHealth>(health.values());
+    }
+
+    private void restart() {
+        ScheduledFuture<?> job = restartJob;
+        if (job != null) {
+            job.cancel(false);
+            restartJob = null;
+        }
+        Process older = process;
+        if (older != null) {
+            process = null;
+            older.destroyForcibly();
+        }
+        if (outputs.isEmpty()) {
+            health.remove(name);
+            logger.debug("No outputs are left so the cameras {} ffmpeg has been stopped.", name);
+            return;
+        }
+        start();
+    }
+
+    private void start() {
+        String command = buildCommand();
+        logger.debug("Starting the cameras {} ffmpeg with this command now:{}", name, command);
+        ready = false;
+        int thisGeneration = ++generation;
+        try {
+            Process started = new ProcessBuilder(command.trim().split("\\s+")).start();
+            started.getOutputStream().close();
+            process = started;
+            ProcessHealth processHealth = new ProcessHealth(name, pidOf(started), crashes);
+            processHealth.lastError = lastError;
+            health.put(name, processHealth);
+            new LogReader(started, thisGeneration).start();
+            new ProgressReader(started, thisGeneration, new ArrayList<Ffmpeg>(outputs)).start();
+        } catch (IOException e) {
+            logger.warn("Could not start ffmpeg:{}", e.getMessage());
+            lastError = String.valueOf(e.getMessage());
+            scheduleRestart();
+        }
+    }
+
+    private void scheduleRestart() {
+        crashes++;
+        logger.warn("The cameras {} ffmpeg stopped, it will be restarted in {} seconds. Last output was:{}", name,
+                backoffMs / 1000, lastError);
+        restartJob = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (FfmpegSupervisor.this) {
+                    restartJob = null;
+                    if (process == null && !outputs.isEmpty()) {
+                        start();
+                    }
+                }
+            }
+        }, backoffMs, TimeUnit.MILLISECONDS);
+        backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+    }
+
+    private synchronized void processReady(int readyGeneration) {
+        if (readyGeneration == generation && !ready) {
+            ready = true;
+            backoffMs = FIRST_BACKOFF_MS;
+            ProcessHealth processHealth = health.get(name);
+            logger.debug("The cameras {} ffmpeg is sending frames after {} ms.", name,
+                    processHealth == null ? -1 : processHealth.getUptimeMs());
+        }
+    }
+
+    private synchronized void processExited(int exitedGeneration, String lastLine) {
+        if (exitedGeneration != generation || process == null) {
+            // Stopped on purpose, or an older process that was replaced.
+            return;
+        }
+        process = null;
+        ready = false;
+        lastError = lastLine;
+        scheduleRestart();
+    }
+
+    private String buildCommand() {
+        Ffmpeg first = outputs.get(0);
+        // HLS may re-encode with the users own arguments, so only snapshots on their own can skip the other frames.
+        boolean onlySnapshots = true;
+        boolean rtspOverTcp = false;
+        for (Ffmpeg output : outputs) {
+            if (!output.getFormat().equals("SNAPSHOT")) {
+                onlySnapshots = false;
+            }
+            if (output.getInputArguments().contains("-rtsp_transport tcp")) {
+                rtspOverTcp = true;
+            }
+        }
+        // The input arguments of the outputs are replaced on purpose, as they were made for a process of their own.
+        // Only the RTSP transport is taken from them, the rest are the same for every output or set below.
+        StringBuilder command = new StringBuilder(512);
+        command.append(first.getFfmpegLocation()).append(" -progress pipe:1");
+        if (rtspOverTcp) {
+            command.append(" -rtsp_transport tcp");
+        }
+        // The alarms come from stdout, so the log only needs the warnings.
+        command.append(" -hide_banner -loglevel warning");
+        if (onlySnapshots) {
+            command.append(" -skip_frame nokey");
+        }
+        command.append(" -i ").append(first.getInput());
+        for (Ffmpeg output : outputs) {
+            command.append(' ');
+            switch (output.getFormat()) {
+                case "SNAPSHOT":
+                    command.append("-map 0:v ");
+                    if (!onlySnapshots) {
+                        command.append("-vf select='eq(pict_type,I)' ");
+                    }
+                    break;
+                case "MJPEG":
+                    command.append("-map 0:v ");
+                    break;
+                case "RTSPHELPER":
+                    command.append("-map 0:v? -map 0:a? ");
+                    break;
+            }
+            // HLS keeps the users own stream selection as its arguments may add a silent audio input.
+            command.append(output.getOutArguments()).append(' ').append(output.getOutput());
+        }
+        return command.toString();
+    }
+
+    // Process.pid() only exists from Java 9, Java 8 keeps it in a private field.
+    private static long pidOf(Process started) {
+        try {
+            Method pid = Process.class.getMethod("pid");
+            return ((Number) pid.invoke(started)).longValue();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+        }
+        try {
+            Field pid = started.getClass().getDeclaredField("pid");
+            pid.setAccessible(true);
+            return pid.getLong(started);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    // Drains the log, so ffmpeg never blocks on a full stderr pipe.
+    private class LogReader extends Thread {
+        private final Process readFrom;
+        private final int readGeneration;
+
+        LogReader(Process readFrom, int readGeneration) {
+            this.readFrom = readFrom;
+            this.readGeneration = readGeneration;
+        }
+
+        @Override
+        public void run() {
+            String lastLine = "";
+            try {
+                BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(readFrom.getErrorStream()));
+                String line = null;
+                while ((line = bufferedReader.readLine()) != null) {
+                    logger.debug("{}", line);
+                    lastLine = line;
+                }
+            } catch (IOException e) {
+                logger.debug("Stopped reading the cameras ffmpeg output:{}", e.getMessage());
+            }
+            processExited(readGeneration, lastLine);
+        }
+    }
+
+    // Reads the -progress and metadata lines from stdout and hands them to the outputs.
+    private class ProgressReader extends Thread implements FfmpegProgressReader.Listener {
+        private final Process readFrom;
+        private final int readGeneration;
+        private final List<Ffmpeg> readFor;
+
+        ProgressReader(Process readFrom, int readGeneration, List<Ffmpeg> readFor) {
+            this.readFrom = readFrom;
+            this.readGeneration = readGeneration;
+            this.readFor = readFor;
+        }
+
+        @Override
+        public void run() {
+            try {
+                new FfmpegProgressReader().read(readFrom.getInputStream(), this);
+            } catch (IOException e) {
+                logger.debug("Stopped reading the cameras ffmpeg progress:{}", e.getMessage());
+            }
+        }
+
+        @Override
+        public void progress(long frame) {
+            if (frame > 0) {
+                processReady(readGeneration);
+            }
+            for (Ffmpeg output : readFor) {
+                output.progress(frame);
+            }
+        }
+
+        @Override
+        public void analysisEvent(FfmpegAnalysisEvent event) {
+            for (Ffmpeg output : readFor) {
+                output.analysisEvent(event);
+            }
+        }
+    }
+}
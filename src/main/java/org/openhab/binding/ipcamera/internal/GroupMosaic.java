@@ -0,0 +1,212 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.ipcamera.handler.IpCameraHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * The {@link GroupMosaic} tiles the latest snapshot of every camera in a group into one JPEG, so a wall display needs
+ * one connection instead of one per camera. The picture is kept between refreshes and only the tiles of cameras with a
+ * newer snapshot are decoded and drawn again, before the whole picture is encoded on the image threads.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class GroupMosaic {
+    public interface Listener {
+        // Called on an image thread with each new mosaic, the frame must be retained to be kept.
+        void mosaicReady(SnapshotFrame frame);
+    }
+
+    private static final int TILE_WIDTH = 640;
+    private static final int TILE_HEIGHT = 360;
+    private static final float QUALITY = 0.8f;
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Executor executor;
+    private final Listener listener;
+    private final AtomicReference<SnapshotFrame> currentMosaic = new AtomicReference<SnapshotFrame>(
+            SnapshotFrame.EMPTY);
+    private long mosaicSequence = 0;
+    // Only used by the one refresh that is running, guarded by busy.
+    private @Nullable BufferedImage canvas = null;
+    private List<String> tileIds = new ArrayList<String>(4);
+    private long[] tileSequences = new long[0];
+    private boolean busy = false;
+
+    public GroupMosaic(Executor executor, Listener listener) {
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    // The caller must release the frame when done, it is empty until the first mosaic is made.
+    public SnapshotFrame acquireMosaic() {
+        return SnapshotFrame.acquire(currentMosaic);
+    }
+
+    // Makes a new mosaic from the cameras in this order, skipped if the last one is still being made.
+    public void refresh(List<IpCameraHandler> cameras) {
+        synchronized (this) {
+            if (busy || cameras.isEmpty()) {
+                return;
+            }
+            busy = true;
+        }
+        List<IpCameraHandler> tiles = new ArrayList<IpCameraHandler>(cameras);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compose(tiles);
+                    } finally {
+                        synchronized (GroupMosaic.this) {
+                            busy = false;
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                busy = false;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        currentMosaic.getAndSet(SnapshotFrame.EMPTY).release();
+        // A refresh that is running keeps its own reference to the canvas.
+        canvas = null;
+        tileIds = new ArrayList<String>(4);
+        tileSequences = new long[0];
+    }
+
+    private void compose(List<IpCameraHandler> cameras) {
+        List<String> ids = new ArrayList<String>(cameras.size());
+        for (IpCameraHandler camera : cameras) {
+            ids.add(camera.getThing().getUID().getId());
+        }
+        BufferedImage picture;
+        long[] sequences;
+        synchronized (this) {
+            BufferedImage existing = canvas;
+            if (existing == null || !ids.equals(tileIds)) {
+                int columns = (int) Math.ceil(Math.sqrt(cameras.size()));
+                int rows = (cameras.size() + columns - 1) / columns;
+                existing = new BufferedImage(columns * TILE_WIDTH, rows * TILE_HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+                canvas = existing;
+                tileIds = ids;
+                tileSequences = new long[cameras.size()];
+                Arrays.fill(tileSequences, -1);
+            }
+            picture = existing;
+            sequences = tileSequences;
+        }
+        int columns = picture.getWidth() / TILE_WIDTH;
+        boolean changed = false;
+        for (int index = 0; index < cameras.size(); index++) {
+            SnapshotFrame frame = cameras.get(index).acquireSnapshot();
+            try {
+                if (frame.isEmpty() || frame.getSequence() == sequences[index]) {
+                    continue;
+                }
+                if (drawTile(picture, frame, (index % columns) * TILE_WIDTH, (index / columns) * TILE_HEIGHT)) {
+                    sequences[index] = frame.getSequence();
+                    changed = true;
+                }
+            } finally {
+                frame.release();
+            }
+        }
+        if (!changed) {
+            return;
+        }
+        ByteBuf jpeg;
+        try {
+            jpeg = JpegImages.encode(picture, QUALITY);
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Could not encode the group mosaic:{}", e.getMessage());
+            return;
+        }
+        SnapshotFrame mosaic;
+        synchronized (this) {
+            if (canvas != picture) {
+                // Cleared while this one was being made.
+                jpeg.release();
+                return;
+            }
+            mosaic = new SnapshotFrame(jpeg, ++mosaicSequence);
+            currentMosaic.getAndSet(mosaic).release();
+            mosaic.tryRetain();
+        }
+        try {
+            listener.mosaicReady(mosaic);
+        } finally {
+            mosaic.release();
+        }
+    }
+
+    // Fits the snapshot inside its tile and keeps its shape, returns false if it could not be decoded.
+    private boolean drawTile(BufferedImage picture, SnapshotFrame frame, int x, int y) {
+        ByteBuf jpeg = frame.retainedSlice();
+        if (jpeg == null) {
+            return false;
+        }
+        @Nullable
+        BufferedImage image;
+        try {
+            image = JpegImages.decodeSubsampled(jpeg, TILE_WIDTH, TILE_HEIGHT);
+        } catch (IOException | RuntimeException e) {
+            logger.debug("A snapshot could not be decoded for the group mosaic:{}", e.getMessage());
+            return false;
+        } finally {
+            jpeg.release();
+        }
+        if (image == null) {
+            return false;
+        }
+        double scale = Math.min((double) TILE_WIDTH / image.getWidth(), (double) TILE_HEIGHT / image.getHeight());
+        int width = Math.max(1, (int) (image.getWidth() * scale));
+        int height = Math.max(1, (int) (image.getHeight() * scale));
+        Graphics2D graphics = picture.createGraphics();
+        try {
+            graphics.setColor(Color.BLACK);
+            graphics.fillRect(x, y, TILE_WIDTH, TILE_HEIGHT);
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, x + (TILE_WIDTH - width) / 2, y + (TILE_HEIGHT - height) / 2, width, height,
+                    null);
+        } finally {
+            graphics.dispose();
+        }
+        return true;
+    }
+}
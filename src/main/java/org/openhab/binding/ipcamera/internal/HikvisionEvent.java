@@ -0,0 +1,42 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+
+/**
+ * The {@link HikvisionEvent} is one EventNotificationAlert from a Hikvision alertStream, as decoded by the
+ * {@link HikvisionEventDecoder}.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class HikvisionEvent {
+    public final String eventType;
+    // From <channelID> or <dynChannelID>, NVRs use 0 for all channels.
+    public final String channelId;
+    public final String eventState;
+
+    public HikvisionEvent(String eventType, String channelId, String eventState) {
+        this.eventType = eventType;
+        this.channelId = channelId;
+        this.eventState = eventState;
+    }
+
+    @Override
+    public String toString() {
+        return eventType + " channel:" + channelId + " state:" + eventState;
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * The {@link HikvisionEventDecoder} sits in front of the CommonCameraHandler and turns the multipart body of a
+ * Hikvision alertStream into {@link HikvisionEvent} objects. The few elements that are needed are read straight from
+ * the bytes as they arrive, so the chunks are never joined into Strings and searched again and again.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class HikvisionEventDecoder extends ChannelInboundHandlerAdapter {
+    private static final byte[] END_OF_EVENT = ascii("</EventNotificationAlert>");
+    private static final byte[] EVENT_TYPE = ascii("<eventType>");
+    private static final byte[] CHANNEL_ID = ascii("<channelID>");
+    private static final byte[] DYN_CHANNEL_ID = ascii("<dynChannelID>");
+    private static final byte[] EVENT_STATE = ascii("<eventState>");
+    // A part without an end in this many bytes is not an event and is thrown away.
+    private static final int MAX_PART_BYTES = 64 * 1024;
+    private byte[] delimiter = ascii("--boundary");
+    private boolean decoding = false;
+    private @Nullable ByteBuf cumulation = null;
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public void channelRead(@Nullable ChannelHandlerContext ctx, @Nullable Object msg) throws Exception {
+        if (ctx == null || msg == null) {
+            return;
+        }
+        if (msg instanceof HttpResponse) {
+            String contentType = ((HttpResponse) msg).headers().get(HttpHeaderNames.CONTENT_TYPE, "");
+            // MJPEG streams are also multipart but always use x-mixed-replace.
+            decoding = contentType.contains("multipart") && !contentType.contains("x-mixed-replace");
+            if (decoding) {
+                int boundary = contentType.indexOf("boundary=");
+                if (boundary >= 0) {
+                    delimiter = ascii("--" + contentType.substring(boundary + 9).replace("\"", "").trim());
+                }
+            }
+        }
+        if (!decoding || !(msg instanceof HttpContent)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        try {
+            ByteBuf buffer = cumulation;
+            if (buffer == null) {
+                buffer = ctx.alloc().buffer(4096);
+                cumulation = buffer;
+            }
+            buffer.writeBytes(((HttpContent) msg).content());
+            decode(ctx, buffer);
+            if (msg instanceof LastHttpContent) {
+                decoding = false;
+                releaseCumulation();
+            }
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private void decode(ChannelHandlerContext ctx, ByteBuf buffer) {
+        while (buffer.isReadable()) {
+            int start = indexOf(buffer, delimiter, buffer.readerIndex(), buffer.writerIndex());
+            if (start < 0) {
+                // Keep enough bytes to find a delimiter that is split over two chunks.
+                buffer.skipBytes(Math.max(0, buffer.readableBytes() - delimiter.length));
+                break;
+            }
+            int from = start + delimiter.length;
+            int end = indexOf(buffer, END_OF_EVENT, from, buffer.writerIndex());
+            int next = indexOf(buffer, delimiter, from, buffer.writerIndex());
+            if (end >= 0 && (next < 0 || end < next)) {
+                HikvisionEvent event = readEvent(buffer, from, end);
+                buffer.readerIndex(end + END_OF_EVENT.length);
+                if (event != null) {
+                    ctx.fireChannelRead(event);
+                }
+            } else if (next >= 0) {
+                // A part with no event in it, such as a heartbeat.
+                buffer.readerIndex(next);
+            } else {
+                if (buffer.writerIndex() - start > MAX_PART_BYTES) {
+                    buffer.skipBytes(buffer.readableBytes());
+                } else {
+                    buffer.readerIndex(start);
+                }
+                break;
+            }
+        }
+        buffer.discardSomeReadBytes();
+    }
+
+    private @Nullable HikvisionEvent readEvent(ByteBuf buffer, int from, int to) {
+        String eventType = readElement(buffer, EVENT_TYPE, from, to);
+        if (eventType.isEmpty()) {
+            return null;
+        }
+        String channelId = readElement(buffer, CHANNEL_ID, from, to);
+        if (channelId.isEmpty()) {
+            channelId = readElement(buffer, DYN_CHANNEL_ID, from, to);
+        }
+        return new HikvisionEvent(eventType, channelId, readElement(buffer, EVENT_STATE, from, to));
+    }
+
+    // Returns the text between the opening tag and the next '<', or "" if the tag is not there.
+    private static String readElement(ByteBuf buffer, byte[] openTag, int from, int to) {
+        int start = indexOf(buffer, openTag, from, to);
+        if (start < 0) {
+            return "";
+        }
+        start += openTag.length;
+        int end = buffer.indexOf(start, to, (byte) '<');
+        if (end < 0) {
+            return "";
+        }
+        return buffer.toString(start, end - start, StandardCharsets.US_ASCII).trim();
+    }
+
+    private static int indexOf(ByteBuf buffer, byte[] needle, int from, int to) {
+        int last = to - needle.length;
+        int index = from;
+        while (index <= last) {
+            index = buffer.indexOf(index, last + 1, needle[0]);
+            if (index < 0) {
+                return -1;
+            }
+            int i = 1;
+            while (i < needle.length && buffer.getByte(index + i) == needle[i]) {
+                i++;
+            }
+            if (i == needle.length) {
+                return index;
+            }
+            index++;
+        }
+        return -1;
+    }
+
+    private void releaseCumulation() {
+        ByteBuf buffer = cumulation;
+        if (buffer != null) {
+            buffer.release();
+            cumulation = null;
+        }
+    }
+
+    @Override
+    public void handlerRemoved(@Nullable ChannelHandlerContext ctx) {
+        releaseCumulation();
+    }
+}
@@ -67,226 +67,177 @@ public class HikvisionHandler extends ChannelDuplexHandler {
         if (msg == null || ctx == null) {
             return;
         }
+        if (msg instanceof HikvisionEvent) {
+            // From the alertStream, decoded by the HikvisionEventDecoder and shared with the other cameras on the NVR.
+            ipCameraHandler.nvrEventDecoded(((HikvisionEvent) msg).channelId, msg);
+            return;
+        }
         String content = "";
-        int debounce = 3;
         try {
             content = msg.toString();
             if (content.isEmpty()) {
                 return;
             }
             logger.trace("HTTP Result back from camera is \t:{}:", content);
+            String replyElement = OnvifConnection.fetchXML(content, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>", "<");
+            switch (replyElement) {
+                case "MotionDetection version=":
+                    storeReply("/ISAPI/System/Video/inputs/channels/" + nvrChannel + "01/motionDetection", content);
 
-            if (content.contains("--boundary")) {// Alarm checking goes in here//
-                if (content.contains("<EventNotificationAlert version=\"")) {
-                    if (content.contains("hannelID>" + nvrChannel + "</")) {// some camera use c or <dynChannelID>
-                        if (content.contains("<eventType>linedetection</eventType>")) {
-                            ipCameraHandler.motionDetected(CHANNEL_LINE_CROSSING_ALARM);
-                            lineCount = debounce;
-                        }
-                        if (content.contains("<eventType>fielddetection</eventType>")) {
-                            ipCameraHandler.motionDetected(CHANNEL_FIELD_DETECTION_ALARM);
-                            fieldCount = debounce;
-                        }
-                        if (content.contains("<eventType>VMD</eventType>")) {
-                            ipCameraHandler.motionDetected(CHANNEL_MOTION_ALARM);
-                            vmdCount = debounce;
-                        }
-                        if (content.contains("<eventType>facedetection</eventType>")) {
-                            ipCameraHandler.setChannelState(CHANNEL_FACE_DETECTED, OnOffType.valueOf("ON"));
-                            faceCount = debounce;
-                        }
-                        if (content.contains("<eventType>unattendedBaggage</eventType>")) {
-                            ipCameraHandler.setChannelState(CHANNEL_ITEM_LEFT, OnOffType.valueOf("ON"));
-                            leftCount = debounce;
-                        }
-                        if (content.contains("<eventType>attendedBaggage</eventType>")) {
-                            ipCameraHandler.setChannelState(CHANNEL_ITEM_TAKEN, OnOffType.valueOf("ON"));
-                            takenCount = debounce;
-                        }
-                        if (content.contains("<eventType>PIR</eventType>")) {
-                            ipCameraHandler.motionDetected(CHANNEL_PIR_ALARM);
-                            pirCount = debounce;
-                        }
-                        if (content.contains("<eventType>videoloss</eventType>\r\n<eventState>inactive</eventState>")) {
-                            if (vmdCount > 1) {
-                                vmdCount = 1;
-                            }
-                            countDown();
-                            countDown();
-                        }
-                    } else if (content.contains("<channelID>0</channelID>")) {// NVR uses channel 0 to say all channels
-                        if (content.contains("<eventType>videoloss</eventType>\r\n<eventState>inactive</eventState>")) {
-                            if (vmdCount > 1) {
-                                vmdCount = 1;
-                            }
-                            countDown();
-                            countDown();
-                        }
+                    if (content.contains("<enabled>true</enabled>")) {
+                        ipCameraHandler.setChannelState(CHANNEL_ENABLE_MOTION_ALARM, OnOffType.valueOf("ON"));
+                    } else if (content.contains("<enabled>false</enabled>")) {
+                        ipCameraHandler.setChannelState(CHANNEL_ENABLE_MOTION_ALARM, OnOffType.valueOf("OFF"));
                     }
-                    countDown();
-                }
-            } else {
-                String replyElement = OnvifConnection.fetchXML(content, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>",
-                        "<");
-                switch (replyElement) {
-                    case "MotionDetection version=":
-                        ipCameraHandler.lock.lock();
-                        try {
-                            byte indexInLists = (byte) ipCameraHandler.listOfRequests.indexOf(
-                                    "/ISAPI/System/Video/inputs/channels/" + nvrChannel + "01/motionDetection");
-                            if (indexInLists >= 0) {
-                                ipCameraHandler.listOfReplies.set(indexInLists, content);
-                            }
-                        } finally {
-                            ipCameraHandler.lock.unlock();
-                        }
-
-                        if (content.contains("<enabled>true</enabled>")) {
-                            ipCameraHandler.setChannelState(CHANNEL_ENABLE_MOTION_ALARM, OnOffType.valueOf("ON"));
-                        } else if (content.contains("<enabled>false</enabled>")) {
-                            ipCameraHandler.setChannelState(CHANNEL_ENABLE_MOTION_ALARM, OnOffType.valueOf("OFF"));
-                        }
-                        break;
-                    case "IOInputPort version=":
-                        ipCameraHandler.lock.lock();
-                        try {
-                            byte indexInLists = (byte) ipCameraHandler.listOfRequests
-                                    .indexOf("/ISAPI/System/IO/inputs/" + nvrChannel);
-                            if (indexInLists >= 0) {
-                                ipCameraHandler.listOfReplies.set(indexInLists, content);
-                            }
-                        } finally {
-                            ipCameraHandler.lock.unlock();
-                        }
-                        if (content.contains("<enabled>true</enabled>")) {
-                            ipCameraHandler.setChannelState(CHANNEL_ENABLE_EXTERNAL_ALARM_INPUT,
-                                    OnOffType.valueOf("ON"));
-                        } else if (content.contains("<enabled>false</enabled>")) {
-                            ipCameraHandler.setChannelState(CHANNEL_ENABLE_EXTERNAL_ALARM_INPUT,
-                                    OnOffType.valueOf("OFF"));
-                        }
-                        if (content.contains("<triggering>low</triggering>")) {
-                            ipCameraHandler.setChannelState(CHANNEL_TRIGGER_EXTERNAL_ALARM_INPUT,
-                                    OnOffType.valueOf("OFF"));
-                        } else if (content.contains("<triggering>high</triggering>")) {
-                            ipCameraHandler.setChannelState(CHANNEL_TRIGGER_EXTERNAL_ALARM_INPUT,
-                                    OnOffType.valueOf("ON"));
-                        }
-                        break;
-                    case "LineDetection":
-                        ipCameraHandler.lock.lock();
-                        try {
-                            byte indexInLists = (byte) ipCameraHandler.listOfRequests
-                                    .indexOf("/ISAPI/Smart/LineDetection/" + nvrChannel + "01");
-                            if (indexInLists >= 0) {
-                                ipCameraHandler.listOfReplies.set(indexInLists, content);
-                            }
-                        } finally {
-                            ipCameraHandler.lock.unlock();
-                        }
-                        if (content.contains("<enabled>true</enabled>")) {
-                            ipCameraHandler.setChannelState(CHANNEL_ENABLE_LINE_CROSSING_ALARM,
-                                    OnOffType.valueOf("ON"));
-                        } else if (content.contains("<enabled>false</enabled>")) {
-                            ipCameraHandler.setChannelState(CHANNEL_ENABLE_LINE_CROSSING_ALARM,
-                                    OnOffType.valueOf("OFF"));
-                        }
-                        break;
-                    case "TextOverlay version=":
-                        ipCameraHandler.lock.lock();
-                        try {
-                            byte indexInLists = (byte) ipCameraHandler.listOfRequests
-                                    .indexOf("/ISAPI/System/Video/inputs/channels/" + nvrChannel + "/overlays/text/1");
-                            if (indexInLists >= 0) {
-                                ipCameraHandler.listOfReplies.set(indexInLists, content);
-                            }
-                        } finally {
-                            ipCameraHandler.lock.unlock();
-                        }
-                        String text = OnvifConnection.fetchXML(content, "<enabled>true</enabled>", "<displayText>");
-                        ipCameraHandler.setChannelState(CHANNEL_TEXT_OVERLAY, StringType.valueOf(text));
-                        break;
-                    case "AudioDetection version=":
-                        ipCameraHandler.lock.lock();
-                        try {
-                            byte indexInLists = (byte) ipCameraHandler.listOfRequests
-                                    .indexOf("/ISAPI/Smart/AudioDetection/channels/" + nvrChannel + "01");
-                            if (indexInLists >= 0) {
-                                ipCameraHandler.listOfReplies.set(indexInLists, content);
-                            }
-                        } finally {
-                            ipCameraHandler.lock.unlock();
-                        }
-                        if (content.contains("<enabled>true</enabled>")) {
-                            ipCameraHandler.setChannelState(CHANNEL_ENABLE_AUDIO_ALARM, OnOffType.valueOf("ON"));
-                        } else if (content.contains("<enabled>false</enabled>")) {
-                            ipCameraHandler.setChannelState(CHANNEL_ENABLE_AUDIO_ALARM, OnOffType.valueOf("OFF"));
-                        }
-                        break;
-                    case "IOPortStatus version=":
-                        if (content.contains("<ioState>active</ioState>")) {
-                            ipCameraHandler.setChannelState(CHANNEL_EXTERNAL_ALARM_INPUT, OnOffType.valueOf("ON"));
-                        } else if (content.contains("<ioState>inactive</ioState>")) {
-                            ipCameraHandler.setChannelState(CHANNEL_EXTERNAL_ALARM_INPUT, OnOffType.valueOf("OFF"));
-                        }
-                        break;
-                    case "FieldDetection version=":
-                        ipCameraHandler.lock.lock();
-                        try {
-                            byte indexInLists = (byte) ipCameraHandler.listOfRequests
-                                    .indexOf("/ISAPI/Smart/FieldDetection/" + nvrChannel + "01");
-                            if (indexInLists >= 0) {
-                                ipCameraHandler.listOfReplies.set(indexInLists, content);
-                            }
-                        } finally {
-                            ipCameraHandler.lock.unlock();
-                        }
-                        if (content.contains("<enabled>true</enabled>")) {
-                            ipCameraHandler.setChannelState(CHANNEL_ENABLE_FIELD_DETECTION_ALARM,
-                                    OnOffType.valueOf("ON"));
-                        } else if (content.contains("<enabled>false</enabled>")) {
-                            ipCameraHandler.setChannelState(CHANNEL_ENABLE_FIELD_DETECTION_ALARM,
-                                    OnOffType.valueOf("OFF"));
-                        }
-                        break;
-                    case "ResponseStatus version=":
-                        ////////////////// External Alarm Input ///////////////
-                        if (content.contains(
-                                "<requestURL>/ISAPI/System/IO/inputs/" + nvrChannel + "/status</requestURL>")) {
-                            // Stops checking the external alarm if camera does not have feature.
-                            if (content.contains("<statusString>Invalid Operation</statusString>")) {
-                                ipCameraHandler.lowPriorityRequests.remove(0);
-                                ipCameraHandler.logger.debug(
-                                        "Stopping checks for alarm inputs as camera appears to be missing this feature.");
-                            }
+                    break;
+                case "IOInputPort version=":
+                    storeReply("/ISAPI/System/IO/inputs/" + nvrChannel, content);
+                    if (content.contains("<enabled>true</enabled>")) {
+                        ipCameraHandler.setChannelState(CHANNEL_ENABLE_EXTERNAL_ALARM_INPUT,
+                                OnOffType.valueOf("ON"));
+                    } else if (content.contains("<enabled>false</enabled>")) {
+                        ipCameraHandler.setChannelState(CHANNEL_ENABLE_EXTERNAL_ALARM_INPUT,
+                                OnOffType.valueOf("OFF"));
+                    }
+                    if (content.contains("<triggering>low</triggering>")) {
+                        ipCameraHandler.setChannelState(CHANNEL_TRIGGER_EXTERNAL_ALARM_INPUT,
+                                OnOffType.valueOf("OFF"));
+                    } else if (content.contains("<triggering>high</triggering>")) {
+                        ipCameraHandler.setChannelState(CHANNEL_TRIGGER_EXTERNAL_ALARM_INPUT,
+                                OnOffType.valueOf("ON"));
+                    }
+                    break;
+                case "LineDetection":
+                    storeReply("/ISAPI/Smart/LineDetection/" + nvrChannel + "01", content);
+                    if (content.contains("<enabled>true</enabled>")) {
+                        ipCameraHandler.setChannelState(CHANNEL_ENABLE_LINE_CROSSING_ALARM,
+                                OnOffType.valueOf("ON"));
+                    } else if (content.contains("<enabled>false</enabled>")) {
+                        ipCameraHandler.setChannelState(CHANNEL_ENABLE_LINE_CROSSING_ALARM,
+                                OnOffType.valueOf("OFF"));
+                    }
+                    break;
+                case "TextOverlay version=":
+                    storeReply("/ISAPI/System/Video/inputs/channels/" + nvrChannel + "/overlays/text/1", content);
+                    String text = OnvifConnection.fetchXML(content, "<enabled>true</enabled>", "<displayText>");
+                    ipCameraHandler.setChannelState(CHANNEL_TEXT_OVERLAY, StringType.valueOf(text));
+                    break;
+                case "AudioDetection version=":
+                    storeReply("/ISAPI/Smart/AudioDetection/channels/" + nvrChannel + "01", content);
+                    if (content.contains("<enabled>true</enabled>")) {
+                        ipCameraHandler.setChannelState(CHANNEL_ENABLE_AUDIO_ALARM, OnOffType.valueOf("ON"));
+                    } else if (content.contains("<enabled>false</enabled>")) {
+                        ipCameraHandler.setChannelState(CHANNEL_ENABLE_AUDIO_ALARM, OnOffType.valueOf("OFF"));
+                    }
+                    break;
+                case "IOPortStatus version=":
+                    if (content.contains("<ioState>active</ioState>")) {
+                        ipCameraHandler.setChannelState(CHANNEL_EXTERNAL_ALARM_INPUT, OnOffType.valueOf("ON"));
+                    } else if (content.contains("<ioState>inactive</ioState>")) {
+                        ipCameraHandler.setChannelState(CHANNEL_EXTERNAL_ALARM_INPUT, OnOffType.valueOf("OFF"));
+                    }
+                    break;
+                case "FieldDetection version=":
+                    storeReply("/ISAPI/Smart/FieldDetection/" + nvrChannel + "01", content);
+                    if (content.contains("<enabled>true</enabled>")) {
+                        ipCameraHandler.setChannelState(CHANNEL_ENABLE_FIELD_DETECTION_ALARM,
+                                OnOffType.valueOf("ON"));
+                    } else if (content.contains("<enabled>false</enabled>")) {
+                        ipCameraHandler.setChannelState(CHANNEL_ENABLE_FIELD_DETECTION_ALARM,
+                                OnOffType.valueOf("OFF"));
+                    }
+                    break;
+                case "ResponseStatus version=":
+                    ////////////////// External Alarm Input ///////////////
+                    if (content.contains(
+                            "<requestURL>/ISAPI/System/IO/inputs/" + nvrChannel + "/status</requestURL>")) {
+                        // Stops checking the external alarm if camera does not have feature.
+                        if (content.contains("<statusString>Invalid Operation</statusString>")) {
+                            ipCameraHandler.lowPriorityRequests.remove(0);
+                            ipCameraHandler.logger.debug(
+                                    "Stopping checks for alarm inputs as camera appears to be missing this feature.");
                         }
-                        break;
-                    default:
-                        if (content.contains("<EventNotificationAlert")) {
-                            if (content.contains("hannelID>" + nvrChannel + "</")
-                                    || content.contains("<channelID>0</channelID>")) {// some camera use c or
-                                                                                      // <dynChannelID>
-                                if (content.contains(
-                                        "<eventType>videoloss</eventType>\r\n<eventState>inactive</eventState>")) {
-                                    if (vmdCount > 1) {
-                                        vmdCount = 1;
-                                    }
-                                    countDown();
-                                    countDown();
+                    }
+                    break;
+                default:
+                    if (content.contains("<EventNotificationAlert")) {
+                        if (content.contains("hannelID>" + nvrChannel + "</")
+                                || content.contains("<channelID>0</channelID>")) {// some camera use c or
+                                                                                  // <dynChannelID>
+                            if (content.contains(
+                                    "<eventType>videoloss</eventType>\r\n<eventState>inactive</eventState>")) {
+                                if (vmdCount > 1) {
+                                    vmdCount = 1;
                                 }
                                 countDown();
+                                countDown();
                             }
-                        } else {
-                            logger.debug("Unhandled reply-{}.", content);
+                            countDown();
                         }
-                        break;
-                }
+                    } else {
+                        logger.debug("Unhandled reply-{}.", content);
+                    }
+                    break;
             }
         } finally {
             ReferenceCountUtil.release(msg);
         }
     }
 
+    public void handleEvent(HikvisionEvent event) {
+        int debounce = 3;
+        logger.trace("Hikvision event:{}", event);
+        if (event.channelId.equals(nvrChannel)) {
+            switch (event.eventType) {
+                case "linedetection":
+                    ipCameraHandler.motionDetected(CHANNEL_LINE_CROSSING_ALARM);
+                    lineCount = debounce;
+                    break;
+                case "fielddetection":
+                    ipCameraHandler.motionDetected(CHANNEL_FIELD_DETECTION_ALARM);
+                    fieldCount = debounce;
+                    break;
+                case "VMD":
+                    ipCameraHandler.motionDetected(CHANNEL_MOTION_ALARM);
+                    vmdCount = debounce;
+                    break;
+                case "facedetection":
+                    ipCameraHandler.setChannelState(CHANNEL_FACE_DETECTED, OnOffType.valueOf("ON"));
+                    faceCount = debounce;
+                    break;
+                case "unattendedBaggage":
+                    ipCameraHandler.setChannelState(CHANNEL_ITEM_LEFT, OnOffType.valueOf("ON"));
+                    leftCount = debounce;
+                    break;
+                case "attendedBaggage":
+                    ipCameraHandler.setChannelState(CHANNEL_ITEM_TAKEN, OnOffType.valueOf("ON"));
+                    takenCount = debounce;
+                    break;
+                case "PIR":
+                    ipCameraHandler.motionDetected(CHANNEL_PIR_ALARM);
+                    pirCount = debounce;
+                    break;
+                case "videoloss":
+                    videoLossHeartbeat(event);
+                    break;
+            }
+        } else if (event.channelId.equals("0")) {// NVR uses channel 0 to say all channels
+            videoLossHeartbeat(event);
+        }
+        countDown();
+    }
+
+    // Cameras send videoloss inactive every second or so when nothing is happening, used to turn alarms off quicker.
+    private void videoLossHeartbeat(HikvisionEvent event) {
+        if ("videoloss".equals(event.eventType) && "inactive".equals(event.eventState)) {
+            if (vmdCount > 1) {
+                vmdCount = 1;
+            }
+            countDown();
+            countDown();
+        }
+    }
+
     // This does debouncing of the alarms
     void countDown() {
 
@@ -350,45 +301,47 @@ public class HikvisionHandler extends ChannelDuplexHandler {
         ipCameraHandler.sendHttpPUT(httpPutURL, request);
     }
 
+    // Keeps the last reply so a setting can later be changed by editing and sending the XML back with a PUT.
+    void storeReply(String url, String content) {
+        ChannelTracking tracker = ipCameraHandler.channelTrackingMap.get(url);
+        if (tracker != null) {
+            tracker.setReply(content);
+        }
+    }
+
     public void hikChangeSetting(String httpGetPutURL, String removeElement, String replaceRemovedElementWith) {
-        String body;
-        byte indexInLists;
-        ipCameraHandler.lock.lock();
-        try {
-            indexInLists = (byte) ipCameraHandler.listOfRequests.indexOf(httpGetPutURL);
-        } finally {
-            ipCameraHandler.lock.unlock();
+        ChannelTracking tracker = ipCameraHandler.channelTrackingMap.get(httpGetPutURL);
+        if (tracker == null) {
+            ipCameraHandler.sendHttpGET(httpGetPutURL);
+            logger.debug(
+                    "Did not have a reply stored before hikChangeSetting was run, try again shortly as a reply has just been requested.");
+            return;
         }
-        if (indexInLists >= 0) {
-            ipCameraHandler.lock.lock();
-            if (!"".contains(ipCameraHandler.listOfReplies.get(indexInLists))) {
-                body = ipCameraHandler.listOfReplies.get(indexInLists);
-                ipCameraHandler.lock.unlock();
-                logger.trace("An OLD reply from the camera was:{}", body);
-                if (body.contains("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")) {
-                    body = body.substring("<?xml version=\"1.0\" encoding=\"UTF-8\"?>".length());
-                }
-                int elementIndexStart = body.indexOf("<" + removeElement + ">");
-                int elementIndexEnd = body.indexOf("</" + removeElement + ">");
-                body = body.substring(0, elementIndexStart) + replaceRemovedElementWith
-                        + body.substring(elementIndexEnd + removeElement.length() + 3, body.length());
-                logger.trace("Body for this PUT is going to be:{}", body);
-                ipCameraHandler.listOfReplies.set(indexInLists, body);
-                FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, new HttpMethod("PUT"),
-                        httpGetPutURL);
-                request.headers().set(HttpHeaderNames.HOST, ipCameraHandler.ipAddress);
-                request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
-                request.headers().add(HttpHeaderNames.CONTENT_TYPE, "application/xml; charset=\"UTF-8\"");
-                ByteBuf bbuf = Unpooled.copiedBuffer(body, StandardCharsets.UTF_8);
-                request.headers().set(HttpHeaderNames.CONTENT_LENGTH, bbuf.readableBytes());
-                request.content().clear().writeBytes(bbuf);
-                ipCameraHandler.sendHttpPUT(httpGetPutURL, request);
-            } else {
-                logger.warn(
-                        "Did not have a reply stored before hikChangeSetting was run, try again shortly as a reply has just been requested.");
-                ipCameraHandler.lock.unlock();
-                ipCameraHandler.sendHttpGET(httpGetPutURL);
+        String body = tracker.getReply();
+        if (!body.isEmpty()) {
+            logger.trace("An OLD reply from the camera was:{}", body);
+            if (body.contains("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")) {
+                body = body.substring("<?xml version=\"1.0\" encoding=\"UTF-8\"?>".length());
             }
+            int elementIndexStart = body.indexOf("<" + removeElement + ">");
+            int elementIndexEnd = body.indexOf("</" + removeElement + ">");
+            body = body.substring(0, elementIndexStart) + replaceRemovedElementWith
+                    + body.substring(elementIndexEnd + removeElement.length() + 3, body.length());
+            logger.trace("Body for this PUT is going to be:{}", body);
+            tracker.setReply(body);
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, new HttpMethod("PUT"),
+                    httpGetPutURL);
+            request.headers().set(HttpHeaderNames.HOST, ipCameraHandler.ipAddress);
+            request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+            request.headers().add(HttpHeaderNames.CONTENT_TYPE, "application/xml; charset=\"UTF-8\"");
+            ByteBuf bbuf = Unpooled.copiedBuffer(body, StandardCharsets.UTF_8);
+            request.headers().set(HttpHeaderNames.CONTENT_LENGTH, bbuf.readableBytes());
+            request.content().clear().writeBytes(bbuf);
+            ipCameraHandler.sendHttpPUT(httpGetPutURL, request);
+        } else {
+            logger.warn(
+                    "Did not have a reply stored before hikChangeSetting was run, try again shortly as a reply has just been requested.");
+            ipCameraHandler.sendHttpGET(httpGetPutURL);
         }
     }
 
@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * The {@link HlsPrerollFeed} feeds an MP4 recording from the HLS segments, starting with the segments ffmpeg finished
+ * before the recording was asked for and then each new one as it arrives. MPEG-TS segments can be joined end to end, so
+ * the recording ffmpeg only needs to copy the streams into the MP4. How far back it can go is limited by how many
+ * segments the HLS playlist keeps.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class HlsPrerollFeed implements Ffmpeg.StdinFeed, HlsSegmentCache.SegmentListener {
+    // A new segment arrives every hls_time seconds, none for this long means the HLS ffmpeg has stopped.
+    private static final int SEGMENT_TIMEOUT_SECONDS = 20;
+    private static final int MAX_QUEUED_SEGMENTS = 64;
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final HlsSegmentCache cache;
+    private final LinkedBlockingQueue<String> segments = new LinkedBlockingQueue<String>(MAX_QUEUED_SEGMENTS);
+    private final long recordUntil;
+
+    public HlsPrerollFeed(HlsSegmentCache cache, int prerollSeconds, int recordSeconds) {
+        this.cache = cache;
+        for (String name : cache.follow(prerollSeconds, this)) {
+            segmentReady(name);
+        }
+        // ffmpeg stops by itself once it has enough video, this only makes sure the feed can not run forever.
+        recordUntil = System.currentTimeMillis() + (recordSeconds + SEGMENT_TIMEOUT_SECONDS) * 1000L;
+    }
+
+    @Override
+    public void segmentReady(String name) {
+        if (!segments.offer(name)) {
+            logger.debug("HLS segment {} was not added to the recording as it fell too far behind.", name);
+        }
+    }
+
+    @Override
+    public void writeTo(OutputStream stdin) throws IOException {
+        try {
+            while (System.currentTimeMillis() < recordUntil) {
+                String name = segments.poll(SEGMENT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                if (name == null) {
+                    logger.debug("No new HLS segments arrived, the recording will be shorter than asked for.");
+                    return;
+                }
+                ByteBuf segment = cache.getOrRead(name);
+                if (segment != null) {
+                    try {
+                        segment.readBytes(stdin, segment.readableBytes());
+                    } finally {
+                        segment.release();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void release() {
+        cache.unfollow(this);
+        segments.clear();
+    }
+}
@@ -0,0 +1,342 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * The {@link HlsSegmentCache} keeps the live HLS playlist and the segments it lists in direct buffers, so the stream
+ * server answers from RAM and the disk is only read once per segment. ffmpeg only adds a segment to the playlist once
+ * it is finished, so watching the playlist is enough to know when a segment is ready.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class HlsSegmentCache {
+    public interface SegmentListener {
+        // Called with the cache locked for each segment ffmpeg adds to the playlist, so it must not block.
+        void segmentReady(String name);
+    }
+
+    public static final String PLAYLIST = "ipcamera.m3u8";
+    // A 4 segment live window of 2 second segments is normally well under this.
+    private static final long MAX_CACHE_BYTES = 16 * 1024 * 1024;
+    private static final int POLL_MS = 200;
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final ScheduledExecutorService scheduler;
+    private final String outputFolder;
+    // Guarded by synchronized, the buffers are only retained or released while holding the lock.
+    private final Map<String, ByteBuf> files = new HashMap<String, ByteBuf>(8);
+    private final Map<String, LinkedList<Runnable>> waiting = new HashMap<String, LinkedList<Runnable>>(4);
+    // The segments in the live playlist oldest first, with how many seconds each one holds.
+    private List<String> liveSegments = new ArrayList<String>(8);
+    private final Map<String, Double> durations = new HashMap<String, Double>(8);
+    private final Map<String, Long> modifiedTimes = new HashMap<String, Long>(8);
+    private final List<SegmentListener> listeners = new ArrayList<SegmentListener>(1);
+    // Both only read or changed while holding the lock. Bytes are reserved before a segment is read, so segments read
+    // at the same time can not go over MAX_CACHE_BYTES between them.
+    private long cachedBytes = 0;
+    private long reservedBytes = 0;
+    private long playlistModified = 0;
+    private @Nullable ScheduledFuture<?> pollJob = null;
+
+    public HlsSegmentCache(String outputFolder, ScheduledExecutorService scheduler) {
+        this.outputFolder = outputFolder;
+        this.scheduler = scheduler;
+    }
+
+    public synchronized void start() {
+        if (pollJob == null) {
+            // A playlist left behind by an earlier run of ffmpeg lists segments that are about to be replaced.
+            playlistModified = new File(outputFolder + PLAYLIST).lastModified();
+            pollJob = scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkPlaylist();
+                }
+            }, 0, POLL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        ScheduledFuture<?> job = pollJob;
+        if (job != null) {
+            job.cancel(false);
+            pollJob = null;
+        }
+        for (ByteBuf buffer : files.values()) {
+            buffer.release();
+        }
+        files.clear();
+        waiting.clear();
+        liveSegments = new ArrayList<String>(8);
+        durations.clear();
+        modifiedTimes.clear();
+        cachedBytes = 0;
+        playlistModified = 0;
+    }
+
+    // Returns a buffer the caller owns and must release, or null if the file is not in the cache.
+    public synchronized @Nullable ByteBuf get(String name) {
+        ByteBuf buffer = files.get(name);
+        return buffer == null ? null : buffer.retainedDuplicate();
+    }
+
+    // Returns a buffer the caller owns and must release, read from disk if it is not in the cache.
+    public @Nullable ByteBuf getOrRead(String name) {
+        ByteBuf buffer = get(name);
+        if (buffer != null) {
+            return buffer;
+        }
+        try {
+            return readFile(new File(outputFolder + name));
+        } catch (IOException e) {
+            logger.debug("Could not read the HLS segment {}:{}", name, e.getMessage());
+            return null;
+        }
+    }
+
+    // Returns the newest segments that hold at least prerollSeconds oldest first, and from then on tells the listener
+    // about each new segment. No segment is missed or given twice between the two.
+    public synchronized List<String> follow(double prerollSeconds, SegmentListener listener) {
+        listeners.add(listener);
+        LinkedList<String> preroll = new LinkedList<String>();
+        double seconds = 0;
+        for (int i = liveSegments.size() - 1; i >= 0 && seconds < prerollSeconds; i--) {
+            String name = liveSegments.get(i);
+            preroll.addFirst(name);
+            Double duration = durations.get(name);
+            seconds += duration == null ? 0 : duration;
+        }
+        return preroll;
+    }
+
+    // False until the playlist lists a segment, or when -hls_segment_type fmp4 makes .m4s segments that need their
+    // init segment first and can not simply be joined.
+    public synchronized boolean isMpegTs() {
+        if (liveSegments.isEmpty()) {
+            return false;
+        }
+        for (String name : liveSegments) {
+            if (!name.endsWith(".ts")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized void unfollow(SegmentListener listener) {
+        listeners.remove(listener);
+    }
+
+    // Runs the callback once ffmpeg has finished the file, or straight away if it already is in the cache. The file may
+    // still not be cached if it was too large, so the callback needs to fall back to reading it from disk.
+    public void whenReady(String name, Runnable callback) {
+        synchronized (this) {
+            if (!files.containsKey(name)) {
+                LinkedList<Runnable> list = waiting.get(name);
+                if (list == null) {
+                    list = new LinkedList<Runnable>();
+                    waiting.put(name, list);
+                }
+                list.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    // Used when a request gives up waiting.
+    public synchronized void cancel(String name, Runnable callback) {
+        LinkedList<Runnable> list = waiting.get(name);
+        if (list != null) {
+            list.remove(callback);
+            if (list.isEmpty()) {
+                waiting.remove(name);
+            }
+        }
+    }
+
+    private void checkPlaylist() {
+        File playlistFile = new File(outputFolder + PLAYLIST);
+        long modified = playlistFile.lastModified();
+        if (modified == 0 || modified == playlistModified) {
+            return;
+        }
+        ByteBuf playlist;
+        try {
+            playlist = readFile(playlistFile);
+        } catch (IOException e) {
+            logger.debug("Could not read the HLS playlist yet:{}", e.getMessage());
+            return;
+        }
+        Set<String> live = new HashSet<String>(8);
+        live.add(PLAYLIST);
+        List<String> ordered = new ArrayList<String>(8);
+        Map<String, Double> newDurations = new HashMap<String, Double>(8);
+        double duration = 0;
+        ArrayList<Runnable> ready = new ArrayList<Runnable>(2);
+        for (String line : playlist.toString(StandardCharsets.UTF_8).split("\n")) {
+            String name = line.trim();
+            if (name.startsWith("#EXTINF:")) {
+                duration = parseDuration(name);
+                continue;
+            }
+            if (name.isEmpty() || name.startsWith("#") || name.contains("/")) {
+                continue;
+            }
+            live.add(name);
+            ordered.add(name);
+            newDurations.put(name, duration);
+            File segmentFile = new File(outputFolder + name);
+            long segmentModified = segmentFile.lastModified();
+            long reserved = segmentFile.length();
+            synchronized (this) {
+                Long cachedModified = modifiedTimes.get(name);
+                if (cachedModified != null && cachedModified == segmentModified) {
+                    continue;
+                }
+                // A restarted ffmpeg numbers its segments from 0 again, so a cached one may have been replaced.
+                ByteBuf replaced = files.remove(name);
+                if (replaced != null) {
+                    cachedBytes -= replaced.readableBytes();
+                    replaced.release();
+                }
+                if (cachedBytes + reservedBytes + reserved > MAX_CACHE_BYTES) {
+                    logger.debug("HLS segment {} is too large for the cache and will be read from disk.", name);
+                    takeWaiting(name, ready);
+                    continue;
+                }
+                reservedBytes += reserved;
+            }
+            ByteBuf segment = null;
+            try {
+                segment = readFile(segmentFile);
+            } catch (IOException | RuntimeException e) {
+                logger.debug("Could not read the HLS segment {}:{}", name, e.getMessage());
+            }
+            synchronized (this) {
+                reservedBytes -= reserved;
+                if (segment != null) {
+                    ByteBuf replaced = files.put(name, segment);
+                    if (replaced != null) {
+                        cachedBytes -= replaced.readableBytes();
+                        replaced.release();
+                    }
+                    modifiedTimes.put(name, segmentModified);
+                    cachedBytes += segment.readableBytes();
+                }
+                takeWaiting(name, ready);
+            }
+        }
+        synchronized (this) {
+            // Segments that have left the live window are no longer needed.
+            Iterator<Map.Entry<String, ByteBuf>> iterator = files.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, ByteBuf> entry = iterator.next();
+                if (!live.contains(entry.getKey())) {
+                    modifiedTimes.remove(entry.getKey());
+                    cachedBytes -= entry.getValue().readableBytes();
+                    entry.getValue().release();
+                    iterator.remove();
+                }
+            }
+            ByteBuf older = files.put(PLAYLIST, playlist);
+            if (older != null) {
+                older.release();
+            }
+            playlistModified = modified;
+            takeWaiting(PLAYLIST, ready);
+            for (String name : ordered) {
+                if (!liveSegments.contains(name)) {
+                    for (SegmentListener listener : listeners) {
+                        listener.segmentReady(name);
+                    }
+                }
+            }
+            liveSegments = ordered;
+            durations.clear();
+            durations.putAll(newDurations);
+        }
+        for (Runnable callback : ready) {
+            callback.run();
+        }
+    }
+
+    // #EXTINF:2.000000, is followed by the segment it describes.
+    private static double parseDuration(String extinf) {
+        int comma = extinf.indexOf(',');
+        try {
+            return Double.parseDouble(extinf.substring(8, comma < 0 ? extinf.length() : comma).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void takeWaiting(String name, ArrayList<Runnable> ready) {
+        LinkedList<Runnable> list = waiting.remove(name);
+        if (list != null) {
+            ready.addAll(list);
+        }
+    }
+
+    private ByteBuf readFile(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            int length = (int) fileChannel.size();
+            ByteBuf buffer = ByteBufAllocator.DEFAULT.directBuffer(length);
+            try {
+                long position = 0;
+                while (position < length) {
+                    int read = buffer.writeBytes(fileChannel, position, length - (int) position);
+                    if (read < 0) {
+                        break;
+                    }
+                    position += read;
+                }
+            } catch (IOException e) {
+                buffer.release();
+                throw e;
+            }
+            return buffer;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
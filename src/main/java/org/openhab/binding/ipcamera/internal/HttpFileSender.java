@@ -0,0 +1,199 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Date;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedFile;
+
+/**
+ * The {@link HttpFileSender} answers the stream servers requests for files that ffmpeg creates. Files are sent with
+ * sendfile when the connection is not encrypted, ranges are supported so MP4 files can be scrubbed, and a browser that
+ * already has the file is told it has not changed instead of being sent it again.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class HttpFileSender {
+    private static final int CHUNK_SIZE = 8192;
+
+    public static void sendFile(ChannelHandlerContext ctx, HttpRequest request, File file, String contentType)
+            throws IOException {
+        // Throws FileNotFoundException if ffmpeg has not created the file.
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        long length;
+        long lastModified = file.lastModified();
+        try {
+            length = randomAccessFile.length();
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+        String eTag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+        if (notModified(request, eTag, lastModified)) {
+            randomAccessFile.close();
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.NOT_MODIFIED);
+            addHeaders(response, contentType, keepAlive);
+            response.headers().set(HttpHeaderNames.ETAG, eTag);
+            finish(ctx.channel().writeAndFlush(response), keepAlive);
+            return;
+        }
+        long start = 0;
+        long end = length - 1;
+        HttpResponseStatus status = HttpResponseStatus.OK;
+        String range = request.headers().get(HttpHeaderNames.RANGE);
+        String ifRange = request.headers().get(HttpHeaderNames.IF_RANGE);
+        if (range != null && (ifRange == null || ifRange.equals(eTag))) {
+            long[] bounds = parseRange(range, length);
+            if (bounds == null) {
+                randomAccessFile.close();
+                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                        HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+                addHeaders(response, contentType, keepAlive);
+                response.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + length);
+                response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+                finish(ctx.channel().writeAndFlush(response), keepAlive);
+                return;
+            } else if (bounds.length == 2) {
+                start = bounds[0];
+                end = bounds[1];
+                status = HttpResponseStatus.PARTIAL_CONTENT;
+            }
+        }
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+        addHeaders(response, contentType, keepAlive);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, end - start + 1);
+        response.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+        response.headers().set(HttpHeaderNames.ETAG, eTag);
+        response.headers().set(HttpHeaderNames.LAST_MODIFIED, DateFormatter.format(new Date(lastModified)));
+        if (status == HttpResponseStatus.PARTIAL_CONTENT) {
+            response.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+        }
+        ctx.channel().write(response);
+        if (ctx.pipeline().get(SslHandler.class) == null) {
+            // Zero copy, the kernel sends the file straight to the socket.
+            ctx.channel().write(new DefaultFileRegion(randomAccessFile.getChannel(), start, end - start + 1));
+        } else {
+            ctx.channel().write(new ChunkedFile(randomAccessFile, start, end - start + 1, CHUNK_SIZE));
+        }
+        finish(ctx.channel().writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT), keepAlive);
+    }
+
+    // Takes ownership of the content, used for files that are already in memory.
+    public static void sendBuffer(ChannelHandlerContext ctx, HttpRequest request, ByteBuf content,
+            String contentType) {
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+        addHeaders(response, contentType, keepAlive);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+        finish(ctx.channel().writeAndFlush(response), keepAlive);
+    }
+
+    // For a request that can not be answered with a file, such as a snapshot before the first one has arrived.
+    public static void sendStatus(ChannelHandlerContext ctx, HttpRequest request, HttpResponseStatus status) {
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+        HttpUtil.setKeepAlive(response, keepAlive);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+        finish(ctx.channel().writeAndFlush(response), keepAlive);
+    }
+
+    private static void addHeaders(HttpResponse response, String contentType, boolean keepAlive) {
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+        // The browser still asks each time, but gets a 304 when the file has not changed.
+        response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+        HttpUtil.setKeepAlive(response, keepAlive);
+        response.headers().set("Access-Control-Allow-Origin", "*");
+        response.headers().set("Access-Control-Expose-Headers", "*");
+    }
+
+    private static void finish(ChannelFuture future, boolean keepAlive) {
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private static boolean notModified(HttpRequest request, String eTag, long lastModified) {
+        String ifNoneMatch = request.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.contains(eTag) || ifNoneMatch.trim().equals("*");
+        }
+        String ifModifiedSince = request.headers().get(HttpHeaderNames.IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null) {
+            Date since = DateFormatter.parseHttpDate(ifModifiedSince);
+            // HTTP dates only have whole seconds.
+            return since != null && lastModified / 1000 <= since.getTime() / 1000;
+        }
+        return false;
+    }
+
+    // Returns {start, end} for a single byte range, an empty array to send the whole file, or null if the range can not
+    // be satisfied.
+    private static long @Nullable [] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.contains(",")) {
+            // Multiple ranges are rare for video, the whole file is a valid answer.
+            return new long[0];
+        }
+        String[] parts = range.substring(6).trim().split("-", 2);
+        if (parts.length != 2) {
+            return new long[0];
+        }
+        long start;
+        long end = length - 1;
+        try {
+            if (parts[0].isEmpty()) {
+                // bytes=-500 is the last 500 bytes.
+                start = Math.max(0, length - Long.parseLong(parts[1]));
+            } else {
+                start = Long.parseLong(parts[0]);
+                if (!parts[1].isEmpty()) {
+                    end = Math.min(Long.parseLong(parts[1]), length - 1);
+                }
+            }
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+        if (start >= length || start > end) {
+            return null;
+        }
+        return new long[] { start, end };
+    }
+}
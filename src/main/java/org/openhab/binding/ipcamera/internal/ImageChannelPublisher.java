@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.smarthome.core.library.types.RawType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link ImageChannelPublisher} limits how often a JPEG is sent to the Image channel, as each one is copied
+ * through the event bus and often into persistence. Only the newest frame offered in each interval is sent, and a
+ * frame with the same bytes as the last one sent is skipped. The copy and hash are done on the state thread.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class ImageChannelPublisher {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final ChannelStatePublisher.Sink sink;
+    private final String channelId;
+    private final ScheduledExecutorService executor;
+    private int minIntervalMs;
+    // Holds a reference to the newest frame that has not been sent yet.
+    private @Nullable SnapshotFrame pending = null;
+    private boolean sendScheduled = false;
+    private long lastSent = 0;
+    private long lastHash = -1;
+    private int lastLength = -1;
+    private long suppressed = 0;
+    private long suppressedSinceSend = 0;
+
+    public ImageChannelPublisher(ChannelStatePublisher.Sink sink, String channelId, ScheduledExecutorService executor,
+            int minIntervalMs) {
+        this.sink = sink;
+        this.channelId = channelId;
+        this.executor = executor;
+        this.minIntervalMs = minIntervalMs;
+    }
+
+    public synchronized void setMinIntervalMs(int minIntervalMs) {
+        this.minIntervalMs = minIntervalMs;
+    }
+
+    public void offer(SnapshotFrame frame) {
+        if (frame.isEmpty() || !frame.tryRetain()) {
+            return;
+        }
+        SnapshotFrame replaced;
+        synchronized (this) {
+            replaced = pending;
+            pending = frame;
+            if (replaced != null) {
+                suppressed++;
+                suppressedSinceSend++;
+            }
+            if (!sendScheduled) {
+                sendScheduled = true;
+                long delay = Math.max(0, lastSent + minIntervalMs - System.currentTimeMillis());
+                executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        send();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (replaced != null) {
+            replaced.release();
+        }
+    }
+
+    // Total frames that were replaced by a newer one or were the same as the last one sent.
+    public synchronized long getSuppressed() {
+        return suppressed;
+    }
+
+    // Releases any frame waiting to be sent, and the next frame is sent even if it is the same as the last one.
+    public void clear() {
+        SnapshotFrame frame;
+        synchronized (this) {
+            frame = pending;
+            pending = null;
+            lastHash = -1;
+            lastLength = -1;
+        }
+        if (frame != null) {
+            frame.release();
+        }
+    }
+
+    private void send() {
+        SnapshotFrame frame;
+        synchronized (this) {
+            sendScheduled = false;
+            frame = pending;
+            pending = null;
+        }
+        if (frame == null) {
+            return;
+        }
+        byte[] bytes;
+        try {
+            bytes = frame.getBytes();
+        } finally {
+            frame.release();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        long hash = crc.getValue();
+        long skipped;
+        synchronized (this) {
+            if (hash == lastHash && bytes.length == lastLength) {
+                suppressed++;
+                suppressedSinceSend++;
+                return;
+            }
+            lastHash = hash;
+            lastLength = bytes.length;
+            lastSent = System.currentTimeMillis();
+            skipped = suppressedSinceSend;
+            suppressedSinceSend = 0;
+        }
+        if (skipped > 0) {
+            logger.trace("{} skipped {} frames since the last image was sent.", channelId, skipped);
+        }
+        try {
+            sink.publish(channelId, new RawType(bytes, "image/jpeg"));
+        } catch (RuntimeException e) {
+            logger.warn("Could not update the channel {}:{}", channelId, e.getMessage());
+        }
+    }
+}
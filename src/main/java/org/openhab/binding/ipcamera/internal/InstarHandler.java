@@ -147,7 +147,8 @@ public class InstarHandler extends ChannelDuplexHandler {
                         ipCameraHandler.sendHttpGET(
                                 "/param.cgi?cmd=setmdalarm&-aname=server2&-switch=on&-interval=1&cmd=setalarmserverattr&-as_index=3&-as_server="
                                         + ipCameraHandler.hostIp + "&-as_port=" + ipCameraHandler.serverPort
-                                        + "&-as_path=/instar&-as_queryattr1=&-as_queryval1=&-as_queryattr2=&-as_queryval2=&-as_queryattr3=&-as_queryval3=&-as_activequery=1&-as_auth=0&-as_query1=0&-as_query2=0&-as_query3=0");
+                                        + "&-as_path=/" + ipCameraHandler.getThing().getUID().getId()
+                                        + "/instar&-as_queryattr1=&-as_queryval1=&-as_queryattr2=&-as_queryval2=&-as_queryattr3=&-as_queryval3=&-as_activequery=1&-as_auth=0&-as_query1=0&-as_query2=0&-as_query3=0");
                         return;
                     }
             }
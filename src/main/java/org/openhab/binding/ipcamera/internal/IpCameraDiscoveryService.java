@@ -26,7 +26,9 @@ import org.eclipse.smarthome.core.thing.ThingTypeUID;
 import org.eclipse.smarthome.core.thing.ThingUID;
 import org.openhab.binding.ipcamera.handler.IpCameraHandler;
 import org.openhab.binding.ipcamera.onvif.OnvifDiscovery;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,9 +43,12 @@ import org.slf4j.LoggerFactory;
 public class IpCameraDiscoveryService extends AbstractDiscoveryService {
 
     private final Logger logger = LoggerFactory.getLogger(IpCameraDiscoveryService.class);
+    private final IpCameraEventLoops eventLoops;
 
-    public IpCameraDiscoveryService() {
+    @Activate
+    public IpCameraDiscoveryService(@Reference IpCameraEventLoops eventLoops) {
         super(IpCameraHandler.SUPPORTED_THING_TYPES, 30, false);
+        this.eventLoops = eventLoops;
     }
 
     @Override
@@ -68,7 +73,7 @@ public class IpCameraDiscoveryService extends AbstractDiscoveryService {
     @Override
     protected void startScan() {
         removeOlderResults(getTimestampOfLastScan());
-        OnvifDiscovery onvifDiscovery = new OnvifDiscovery(this);
+        OnvifDiscovery onvifDiscovery = new OnvifDiscovery(this, eventLoops.getNioEventLoopGroup());
         try {
             onvifDiscovery.discoverCameras(3702);
             onvifDiscovery.discoverCameras(1900);
@@ -0,0 +1,212 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.ipcamera.handler.IpCameraHandler;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * The {@link IpCameraEventLoops} holds the threads and stream servers that are shared by every camera, group and ONVIF
+ * connection, so the thread count stays the same no matter how many cameras are added. Uses the epoll transport when it
+ * is installed.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+@Component(service = IpCameraEventLoops.class, immediate = true, configurationPid = "binding.ipcamera")
+public class IpCameraEventLoops {
+    private static final int MAX_EVENT_LOOP_THREADS = 8;
+    private static final int SCHEDULER_THREADS = 4;
+    private static final int MAX_IMAGE_THREADS = 4;
+    // Requests past this are refused, so a busy server sends full size snapshots instead of falling behind.
+    private static final int IMAGE_QUEUE_SIZE = 32;
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final boolean usingEpoll;
+    private final EventLoopGroup eventLoopGroup;
+    private final ScheduledExecutorService scheduler;
+    // One thread so each cameras channel states reach openHAB in the order they happened.
+    private final ScheduledExecutorService stateExecutor;
+    // Decodes and encodes JPEGs for thumbnails and snapshot motion detection.
+    private final ExecutorService imageExecutor;
+    private @Nullable EventLoopGroup nioEventLoopGroup = null;
+    private final Map<Integer, SharedStreamServer> streamServers = new HashMap<Integer, SharedStreamServer>(2);
+    private final Map<String, NvrEventHub> nvrEventHubs = new HashMap<String, NvrEventHub>(2);
+
+    public IpCameraEventLoops() {
+        int threads = Math.min(Runtime.getRuntime().availableProcessors() * 2, MAX_EVENT_LOOP_THREADS);
+        usingEpoll = epollAvailable();
+        if (usingEpoll) {
+            eventLoopGroup = EpollTransport.newEventLoopGroup(threads);
+        } else {
+            eventLoopGroup = new NioEventLoopGroup(threads, new DefaultThreadFactory("ipcamera-netty", true));
+        }
+        scheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS,
+                new DefaultThreadFactory("ipcamera-scheduler", true));
+        stateExecutor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("ipcamera-state", true));
+        int imageThreads = Math.min(Runtime.getRuntime().availableProcessors(), MAX_IMAGE_THREADS);
+        ThreadPoolExecutor imagePool = new ThreadPoolExecutor(imageThreads, imageThreads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(IMAGE_QUEUE_SIZE), new DefaultThreadFactory("ipcamera-image", true));
+        imagePool.allowCoreThreadTimeOut(true);
+        imageExecutor = imagePool;
+        logger.debug("IpCamera binding is using {} {} threads.", threads, usingEpoll ? "epoll" : "nio");
+    }
+
+    private static boolean epollAvailable() {
+        try {
+            return Epoll.isAvailable();
+        } catch (NoClassDefFoundError e) {
+            // netty-transport-native-epoll is optional and not installed.
+            return false;
+        }
+    }
+
+    // Each camera keeps all of its connections on one event loop.
+    public EventLoop next() {
+        return eventLoopGroup.next();
+    }
+
+    public EventLoopGroup getEventLoopGroup() {
+        return eventLoopGroup;
+    }
+
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    public ScheduledExecutorService getStateExecutor() {
+        return stateExecutor;
+    }
+
+    public ExecutorService getImageExecutor() {
+        return imageExecutor;
+    }
+
+    public Class<? extends SocketChannel> getSocketChannelClass() {
+        return usingEpoll ? EpollTransport.socketChannelClass() : NioSocketChannel.class;
+    }
+
+    public Class<? extends ServerSocketChannel> getServerChannelClass() {
+        return usingEpoll ? EpollTransport.serverChannelClass() : NioServerSocketChannel.class;
+    }
+
+    // Onvif discovery needs NIO datagram channels to join multicast groups, so it gets its own loop with epoll.
+    public synchronized EventLoopGroup getNioEventLoopGroup() {
+        if (!usingEpoll) {
+            return eventLoopGroup;
+        }
+        EventLoopGroup nioGroup = nioEventLoopGroup;
+        if (nioGroup == null) {
+            nioGroup = new NioEventLoopGroup(1, new DefaultThreadFactory("ipcamera-discovery", true));
+            nioEventLoopGroup = nioGroup;
+        }
+        return nioGroup;
+    }
+
+    // Things that use the same SERVER_PORT share one server, it is bound when the first one starts.
+    public synchronized void startStreamServer(int port, String thingId, SharedStreamServer.HandlerFactory factory)
+            throws InterruptedException {
+        SharedStreamServer server = streamServers.get(port);
+        if (server == null) {
+            server = new SharedStreamServer(this, port);
+            streamServers.put(port, server);
+        }
+        server.addRoute(thingId, factory);
+    }
+
+    public synchronized void stopStreamServer(int port, String thingId) {
+        SharedStreamServer server = streamServers.get(port);
+        if (server != null && server.removeRoute(thingId)) {
+            server.close();
+            streamServers.remove(port);
+            logger.debug("Stream server on port {} has stopped as no things are using it.", port);
+        }
+    }
+
+    // Cameras on the same NVR (IP and port) share one alarm stream.
+    public synchronized NvrEventHub joinNvrEventHub(String nvrKey, IpCameraHandler camera, String channelId) {
+        NvrEventHub hub = nvrEventHubs.get(nvrKey);
+        if (hub == null) {
+            hub = new NvrEventHub(nvrKey);
+            nvrEventHubs.put(nvrKey, hub);
+        }
+        hub.join(camera, channelId);
+        return hub;
+    }
+
+    public synchronized void leaveNvrEventHub(NvrEventHub hub, IpCameraHandler camera) {
+        if (hub.leave(camera)) {
+            nvrEventHubs.remove(hub.getNvrKey());
+        }
+    }
+
+    @Deactivate
+    public synchronized void shutdown() {
+        for (SharedStreamServer server : streamServers.values()) {
+            server.close();
+        }
+        streamServers.clear();
+        scheduler.shutdownNow();
+        stateExecutor.shutdownNow();
+        imageExecutor.shutdownNow();
+        eventLoopGroup.shutdownGracefully();
+        EventLoopGroup nioGroup = nioEventLoopGroup;
+        if (nioGroup != null) {
+            nioGroup.shutdownGracefully();
+            nioEventLoopGroup = null;
+        }
+    }
+
+    // Kept in its own class so the epoll classes are only loaded when epoll is available.
+    private static class EpollTransport {
+        static EventLoopGroup newEventLoopGroup(int threads) {
+            return new EpollEventLoopGroup(threads, new DefaultThreadFactory("ipcamera-netty", true));
+        }
+
+        static Class<? extends SocketChannel> socketChannelClass() {
+            return EpollSocketChannel.class;
+        }
+
+        static Class<? extends ServerSocketChannel> serverChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+    }
+}
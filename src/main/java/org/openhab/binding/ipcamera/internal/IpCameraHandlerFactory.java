@@ -22,7 +22,9 @@ import org.eclipse.smarthome.core.thing.binding.ThingHandler;
 import org.eclipse.smarthome.core.thing.binding.ThingHandlerFactory;
 import org.openhab.binding.ipcamera.handler.IpCameraGroupHandler;
 import org.openhab.binding.ipcamera.handler.IpCameraHandler;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
 
 /**
  * The {@link IpCameraHandlerFactory} is responsible for creating things and thing
@@ -33,6 +35,12 @@ import org.osgi.service.component.annotations.Component;
 @Component(service = ThingHandlerFactory.class, immediate = true, configurationPid = "binding.ipcamera")
 @NonNullByDefault
 public class IpCameraHandlerFactory extends BaseThingHandlerFactory {
+    private final IpCameraEventLoops eventLoops;
+
+    @Activate
+    public IpCameraHandlerFactory(@Reference IpCameraEventLoops eventLoops) {
+        this.eventLoops = eventLoops;
+    }
 
     @Override
     public boolean supportsThingType(ThingTypeUID thingTypeUID) {
@@ -49,9 +57,9 @@ public class IpCameraHandlerFactory extends BaseThingHandlerFactory {
         ThingTypeUID thingTypeUID = thing.getThingTypeUID();
 
         if (IpCameraHandler.SUPPORTED_THING_TYPES.contains(thingTypeUID)) {
-            return new IpCameraHandler(thing);
+            return new IpCameraHandler(thing, eventLoops);
         } else if (IpCameraGroupHandler.SUPPORTED_THING_TYPES.contains(thingTypeUID)) {
-            return new IpCameraGroupHandler(thing);
+            return new IpCameraGroupHandler(thing, eventLoops);
         }
         return null;
     }
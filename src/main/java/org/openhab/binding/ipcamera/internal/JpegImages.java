@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+
+/**
+ * The {@link JpegImages} decodes and encodes the snapshots for the motion detector and thumbnails. The streams are
+ * kept in memory, as ImageIO would otherwise write a temp file for each image.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class JpegImages {
+    // Decodes with the largest subsampling that still gives at least minWidth by minHeight and keeps the aspect ratio,
+    // the decoder skips the other pixels so a 4K snapshot costs little more than a small one. Returns null if it is
+    // not a picture. The jpeg is read through a duplicate, so its reader index does not move.
+    public static @Nullable BufferedImage decodeSubsampled(ByteBuf jpeg, int minWidth, int minHeight)
+            throws IOException {
+        MemoryCacheImageInputStream input = new MemoryCacheImageInputStream(new ByteBufInputStream(jpeg.duplicate()));
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, Math.min(reader.getWidth(0) / Math.max(1, minWidth),
+                        reader.getHeight(0) / Math.max(1, minHeight)));
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    // Returns the width from the start of frame header without decoding, or -1 if it is not found.
+    public static int readWidth(ByteBuf jpeg) {
+        int index = jpeg.readerIndex();
+        int end = jpeg.writerIndex();
+        if (end - index < 4 || jpeg.getUnsignedByte(index) != 0xFF || jpeg.getUnsignedByte(index + 1) != 0xD8) {
+            return -1;
+        }
+        index += 2;
+        while (index + 3 < end) {
+            if (jpeg.getUnsignedByte(index) != 0xFF) {
+                return -1;
+            }
+            int marker = jpeg.getUnsignedByte(index + 1);
+            if (marker == 0xFF) {
+                // Fill byte before the marker.
+                index++;
+                continue;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // Markers without a length.
+                index += 2;
+                continue;
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                // End of image or start of the scan, the header has to be before either.
+                return -1;
+            }
+            // SOF0 to SOF15, apart from DHT, JPG and DAC which share the range.
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                // Length, precision and height come before the width.
+                return index + 8 < end ? jpeg.getUnsignedShort(index + 7) : -1;
+            }
+            index += 2 + jpeg.getUnsignedShort(index + 2);
+        }
+        return -1;
+    }
+
+    public static BufferedImage scale(BufferedImage image, int width, int height) {
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    // Returns a buffer the caller owns and must release.
+    public static ByteBuf encode(BufferedImage image, float quality) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new IOException("This JVM has no JPEG encoder.");
+        }
+        ImageWriter writer = writers.next();
+        ByteBuf jpeg = ByteBufAllocator.DEFAULT.heapBuffer(16 * 1024);
+        try {
+            MemoryCacheImageOutputStream output = new MemoryCacheImageOutputStream(new ByteBufOutputStream(jpeg));
+            try {
+                writer.setOutput(output);
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                output.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            jpeg.release();
+            throw e;
+        } finally {
+            writer.dispose();
+        }
+        return jpeg;
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.util.AttributeKey;
+
+/**
+ * The {@link MjpegFanout} sends MJPEG frames to a group of viewers without letting a slow viewer build up an unbounded
+ * backlog. A viewer that is not writable only keeps the newest frame, which is sent once its socket drains.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class MjpegFanout {
+    // Viewers stop being writable once this much is queued, a few frames is plenty for a smooth stream.
+    public static final WriteBufferWaterMark WATER_MARK = new WriteBufferWaterMark(256 * 1024, 1024 * 1024);
+    // Streams passed through from the camera can not drop frames, so a viewer this far behind is closed.
+    private static final long MAX_PASSTHROUGH_BACKLOG = 8 * 1024 * 1024;
+    private static final AttributeKey<ByteBuf> PENDING_FRAME = AttributeKey.valueOf("ipcameraPendingFrame");
+    private static final AttributeKey<AtomicLong> DROPPED_FRAMES = AttributeKey.valueOf("ipcameraDroppedFrames");
+
+    // Takes ownership of the frame. Each viewer is checked once, so one that stops being writable while the frame is
+    // sent still gets it instead of being missed by both the write and the pending frame.
+    public static void sendFrame(ChannelGroup channelGroup, ByteBuf frame) {
+        List<Channel> recipients = new ArrayList<Channel>(channelGroup.size());
+        for (Channel channel : channelGroup) {
+            if (channel.isWritable()) {
+                // an older frame still waiting is now out of date.
+                dropPending(channel, true);
+                recipients.add(channel);
+            } else {
+                ByteBuf older = channel.attr(PENDING_FRAME).getAndSet(frame.retainedDuplicate());
+                if (older != null) {
+                    older.release();
+                    droppedFrames(channel).incrementAndGet();
+                }
+                if (channel.isWritable()) {
+                    // drained while we were looking, the writability event may already have passed.
+                    channel.eventLoop().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendPending(channel);
+                        }
+                    });
+                }
+            }
+        }
+        for (Channel channel : recipients) {
+            channel.writeAndFlush(frame.retainedDuplicate());
+        }
+        frame.release();
+    }
+
+    // For the multipart chunks that come direct from the camera, takes ownership of msg.
+    public static void sendPassthrough(ChannelGroup channelGroup, Object msg) {
+        for (Channel channel : channelGroup) {
+            if (channel.bytesBeforeWritable() > MAX_PASSTHROUGH_BACKLOG) {
+                droppedFrames(channel).incrementAndGet();
+                channel.close();
+            }
+        }
+        channelGroup.writeAndFlush(msg);
+    }
+
+    // Call from channelWritabilityChanged so a viewer that has caught up gets the newest frame straight away.
+    public static void sendPending(Channel channel) {
+        if (!channel.isWritable()) {
+            return;
+        }
+        ByteBuf pending = channel.attr(PENDING_FRAME).getAndSet(null);
+        if (pending != null) {
+            channel.writeAndFlush(pending);
+        }
+    }
+
+    // Call when the viewer goes away so the frame it was holding is not leaked.
+    public static void release(Channel channel) {
+        dropPending(channel, false);
+    }
+
+    public static long getDroppedFrames(Channel channel) {
+        AtomicLong dropped = channel.attr(DROPPED_FRAMES).get();
+        return dropped == null ? 0 : dropped.get();
+    }
+
+    private static void dropPending(Channel channel, boolean countAsDropped) {
+        ByteBuf pending = channel.attr(PENDING_FRAME).getAndSet(null);
+        if (pending != null) {
+            pending.release();
+            if (countAsDropped) {
+                droppedFrames(channel).incrementAndGet();
+            }
+        }
+    }
+
+    private static AtomicLong droppedFrames(Channel channel) {
+        AtomicLong dropped = channel.attr(DROPPED_FRAMES).get();
+        if (dropped == null) {
+            dropped = new AtomicLong();
+            AtomicLong existing = channel.attr(DROPPED_FRAMES).setIfAbsent(dropped);
+            if (existing != null) {
+                dropped = existing;
+            }
+        }
+        return dropped;
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * The {@link MjpegFramer} wraps a JPEG into one multipart part of a MJPEG stream without copying the JPEG, so each
+ * frame is a single buffer that can be written once to a whole group of viewers.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class MjpegFramer {
+    public static final String BOUNDARY = "thisMjpegStream";
+    public static final String CONTENT_TYPE = "multipart/x-mixed-replace; boundary=" + BOUNDARY;
+    // The parts of every frame that never change are encoded once and shared by all streams.
+    private static final ByteBuf PREFIX = sharedBuffer(
+            "--" + BOUNDARY + "\r\n" + "content-type: image/jpeg" + "\r\n" + "content-length: ");
+    private static final ByteBuf FOOTER = sharedBuffer("\r\n");
+    private static final byte[] END_OF_HEADERS = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static ByteBuf sharedBuffer(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        return Unpooled.unreleasableBuffer(Unpooled.directBuffer(bytes.length).writeBytes(bytes));
+    }
+
+    // Takes ownership of the jpeg, the returned frame releases it when the frame itself is released.
+    public static ByteBuf frame(ByteBuf jpeg) {
+        ByteBufAllocator alloc = ByteBufAllocator.DEFAULT;
+        ByteBuf length = alloc.directBuffer(16);
+        ByteBufUtil.writeAscii(length, Integer.toString(jpeg.readableBytes()));
+        length.writeBytes(END_OF_HEADERS);
+        CompositeByteBuf frame = alloc.compositeDirectBuffer(4);
+        frame.addComponent(true, PREFIX.duplicate());
+        frame.addComponent(true, length);
+        frame.addComponent(true, jpeg);
+        frame.addComponent(true, FOOTER.duplicate());
+        return frame;
+    }
+}
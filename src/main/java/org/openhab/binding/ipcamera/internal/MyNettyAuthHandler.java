@@ -13,19 +13,24 @@
 
 package org.openhab.binding.ipcamera.internal;
 
-import java.security.MessageDigest;
-import java.util.Random;
-
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.smarthome.core.thing.binding.ThingHandler;
 import org.openhab.binding.ipcamera.handler.IpCameraHandler;
+import org.openhab.binding.ipcamera.internal.ChannelTracking.ChannelState;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
 
 /**
  * The {@link MyNettyAuthHandler} is responsible for handling the basic and digest auths
@@ -41,9 +46,10 @@ public class MyNettyAuthHandler extends ChannelDuplexHandler {
     private IpCameraHandler myHandler;
     private String username, password;
     private String httpMethod = "", httpUrl = "";
-    private byte ncCounter = 0;
-    String nonce = "", opaque = "", qop = "";
-    String realm = "";
+    // The nonce the request in progress on this connection was signed with, empty if it was not signed with a digest.
+    private String signedNonce = "";
+    // Set while the body of a keep-alive 401 is read, the answer is then sent on the same connection.
+    private String pendingChallenge = "";
 
     public MyNettyAuthHandler(String user, String pass, String method, String url, ThingHandler handle) {
         myHandler = (IpCameraHandler) handle;
@@ -64,23 +70,6 @@ public class MyNettyAuthHandler extends ChannelDuplexHandler {
         httpMethod = method;
     }
 
-    private String calcMD5Hash(String toHash) {
-        try {
-            MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-            byte[] array = messageDigest.digest(toHash.getBytes());
-            StringBuffer stringBuffer = new StringBuffer();
-            for (int i = 0; i < array.length; ++i) {
-                stringBuffer.append(Integer.toHexString((array[i] & 0xFF) | 0x100).substring(1, 3));
-            }
-            messageDigest = null;
-            array = null;
-            return stringBuffer.toString();
-        } catch (java.security.NoSuchAlgorithmException e) {
-            logger.error("NoSuchAlgorithmException error when calculating MD5 hash");
-        }
-        return "";
-    }
-
     private String searchString(String rawString, String searchedString) {
         String result = "";
         int index = 0;
@@ -114,10 +103,8 @@ public class MyNettyAuthHandler extends ChannelDuplexHandler {
         return "";
     }
 
-    // Method can be used a few ways. processAuth(null, string,string, false) to return the digest on demand, and
-    // processAuth(challString, string,string, true) to auto send new packet
-    // First run it should not have authenticate as null
-    // nonce is reused if authenticate is null so the NC needs to increment to allow this//
+    // Called with the WWW-Authenticate header of a 401, the request is sent again with the right auth when reSend is
+    // true. Digest challenges are stored in the cameras DigestSession so later requests are signed before being sent.
     public void processAuth(String authenticate, String httpMethod, String requestURI, boolean reSend) {
         if (authenticate.contains("Basic realm=\"")) {
             if (myHandler.useDigestAuth == true) {
@@ -132,14 +119,14 @@ public class MyNettyAuthHandler extends ChannelDuplexHandler {
         }
 
         /////// Fresh Digest Authenticate method follows as Basic is already handled and returned ////////
-        realm = searchString(authenticate, "realm=\"");
-        if (realm == "") {
+        String realm = searchString(authenticate, "realm=\"");
+        if (realm.isEmpty()) {
             logger.warn("Could not find a valid WWW-Authenticate response in :{}", authenticate);
             return;
         }
-        nonce = searchString(authenticate, "nonce=\"");
-        opaque = searchString(authenticate, "opaque=\"");
-        qop = searchString(authenticate, "qop=\"");
+        String nonce = searchString(authenticate, "nonce=\"");
+        String opaque = searchString(authenticate, "opaque=\"");
+        String qop = searchString(authenticate, "qop=\"");
 
         if (!qop.isEmpty() && !realm.isEmpty()) {
             myHandler.useDigestAuth = true;
@@ -149,9 +136,9 @@ public class MyNettyAuthHandler extends ChannelDuplexHandler {
                     qop, realm);
         }
 
-        String stale = searchString(authenticate, "stale=\"");
-        if (stale == "") {
-        } else if (stale.equalsIgnoreCase("true")) {
+        String lowerCase = authenticate.toLowerCase();
+        boolean stale = lowerCase.contains("stale=true") || lowerCase.contains("stale=\"true\"");
+        if (stale) {
             logger.debug("Camera reported stale=true which normally means the NONCE has expired.");
         }
 
@@ -159,28 +146,32 @@ public class MyNettyAuthHandler extends ChannelDuplexHandler {
             myHandler.cameraConfigError("Camera gave a 401 reply: You need to provide a password.");
             return;
         }
-        // create the MD5 hashes
-        String ha1 = username + ":" + realm + ":" + password;
-        ha1 = calcMD5Hash(ha1);
-        Random random = new Random();
-        String cnonce = Integer.toHexString(random.nextInt());
-        random = null;
-        ncCounter = (ncCounter > 125) ? 1 : ++ncCounter;
-        String nc = String.format("%08X", ncCounter); // 8 digit hex number
-        String ha2 = httpMethod + ":" + requestURI;
-        ha2 = calcMD5Hash(ha2);
-
-        String response = ha1 + ":" + nonce + ":" + nc + ":" + cnonce + ":" + qop + ":" + ha2;
-        response = calcMD5Hash(response);
-
-        String digestString = "username=\"" + username + "\", realm=\"" + realm + "\", nonce=\"" + nonce + "\", uri=\""
-                + requestURI + "\", cnonce=\"" + cnonce + "\", nc=" + nc + ", qop=\"" + qop + "\", response=\""
-                + response + "\", opaque=\"" + opaque + "\"";
-
-        if (reSend) {
-            myHandler.sendHttpRequest(httpMethod, requestURI, digestString);
+        DigestSession digestSession = myHandler.digestSession;
+        boolean newNonce = digestSession.update(username, password, realm, nonce, opaque, qop);
+        if (!signedNonce.isEmpty() && signedNonce.equals(nonce) && !stale) {
+            // Signed with the nonce the camera just gave us again, so it is the login that is wrong. Another kept alive
+            // connection may have already stored this nonce, so newNonce alone can not tell.
+            myHandler.cameraConfigError("Camera refused the digest login: Your login details must be wrong.");
             return;
         }
+        if (!newNonce) {
+            logger.debug("Camera sent a nonce that was already stored, signing the request again with it.");
+        }
+        if (reSend) {
+            myHandler.sendHttpRequest(httpMethod, requestURI, digestSession.authorize(httpMethod, requestURI));
+        }
+    }
+
+    @Override
+    public void write(@Nullable ChannelHandlerContext ctx, @Nullable Object msg, @Nullable ChannelPromise promise)
+            throws Exception {
+        if (msg instanceof HttpRequest) {
+            String authorization = ((HttpRequest) msg).headers().get(HttpHeaderNames.AUTHORIZATION);
+            signedNonce = authorization != null && authorization.startsWith("Digest")
+                    ? searchString(authorization, "nonce=\"")
+                    : "";
+        }
+        super.write(ctx, msg, promise);
     }
 
     @Override
@@ -188,7 +179,22 @@ public class MyNettyAuthHandler extends ChannelDuplexHandler {
         if (msg == null || ctx == null) {
             return;
         }
-        boolean closeConnection = true;
+        if (!pendingChallenge.isEmpty() && msg instanceof HttpContent) {
+            // The body of a 401 is not needed by the other handlers.
+            ReferenceCountUtil.release(msg);
+            if (msg instanceof LastHttpContent) {
+                String authenticate = pendingChallenge;
+                pendingChallenge = "";
+                ChannelTracking tracker = myHandler.getTracker(httpUrl, ctx.channel());
+                if (tracker != null) {
+                    tracker.setState(ChannelState.REUSABLE);
+                } else {
+                    ctx.close();
+                }
+                processAuth(authenticate, httpMethod, httpUrl, true);
+            }
+            return;
+        }
         String authenticate = "";
         if (msg instanceof HttpResponse) {
             HttpResponse response = (HttpResponse) msg;
@@ -199,29 +205,20 @@ public class MyNettyAuthHandler extends ChannelDuplexHandler {
                             if (name.toString().equalsIgnoreCase("WWW-Authenticate")) {
                                 authenticate = value.toString();
                             }
-                            if (name.toString().equalsIgnoreCase("Connection")
-                                    && value.toString().contains("keep-alive")) {
-                                // closeConnection = false;
-                                // trial this for a while to see if it solves too many bytes with digest turned on.
-                                closeConnection = true;
-                            }
                         }
                     }
-                    myHandler.lock.lock();
-                    try {
-                        byte indexInLists = (byte) myHandler.listOfChannels.indexOf(ctx.channel());
-                        if (indexInLists >= 0) {
-                            if (closeConnection) {
-                                // Need to mark the channel as closing so the digest gets a new ch
-                                myHandler.listOfChStatus.set(indexInLists, (byte) 0);
-                            } else {
-                                myHandler.listOfChStatus.set(indexInLists, (byte) 2);
-                            }
-                        } else {
-                            logger.warn("!!!! 401: Could not find the channel to mark as closing or reusable");
-                        }
-                    } finally {
-                        myHandler.lock.unlock();
+                    if (HttpUtil.isKeepAlive(response) && !authenticate.equals("")) {
+                        // Answer the challenge once the rest of the 401 has arrived so the connection can be re-used.
+                        pendingChallenge = authenticate;
+                        ReferenceCountUtil.release(msg);
+                        return;
+                    }
+                    ChannelTracking tracker = myHandler.getTracker(httpUrl, ctx.channel());
+                    if (tracker != null) {
+                        // Need to mark the channel as closing so the digest gets a new ch
+                        tracker.setState(ChannelState.CLOSING);
+                    } else {
+                        logger.debug("401: The channel was not tracked so could not mark as closing");
                     }
                     if (!authenticate.equals("")) {
                         processAuth(authenticate, httpMethod, httpUrl, true);
@@ -229,9 +226,7 @@ public class MyNettyAuthHandler extends ChannelDuplexHandler {
                         myHandler.cameraConfigError(
                                 "Camera gave no WWW-Authenticate: Your login details must be wrong.");
                     }
-                    if (closeConnection) {
-                        ctx.close();// needs to be here
-                    }
+                    ctx.close();// needs to be here
                 }
             } else if (response.status().code() != 200) {
                 logger.debug("Camera at IP:{} gave a reply with a response code of :{}", myHandler.ipAddress,
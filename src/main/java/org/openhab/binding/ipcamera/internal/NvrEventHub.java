@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.openhab.binding.ipcamera.handler.IpCameraHandler;
+
+/**
+ * The {@link NvrEventHub} lets every camera thing on the same NVR share one alarm stream. The first camera to join
+ * keeps the stream open, the decoded events are then handed to the cameras by their NVR_CHANNEL.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class NvrEventHub {
+    private final String nvrKey;
+    // In the order they joined, the first one holds the alarm stream.
+    private final List<IpCameraHandler> cameras = new CopyOnWriteArrayList<IpCameraHandler>();
+    private final Map<String, List<IpCameraHandler>> byChannel;
+
+    public NvrEventHub(String nvrKey) {
+        this.nvrKey = nvrKey;
+        byChannel = new ConcurrentHashMap<String, List<IpCameraHandler>>(16);
+    }
+
+    public String getNvrKey() {
+        return nvrKey;
+    }
+
+    public synchronized void join(IpCameraHandler camera, String channelId) {
+        if (cameras.contains(camera)) {
+            return;
+        }
+        cameras.add(camera);
+        List<IpCameraHandler> onChannel = byChannel.get(channelId);
+        if (onChannel == null) {
+            onChannel = new CopyOnWriteArrayList<IpCameraHandler>();
+            byChannel.put(channelId, onChannel);
+        }
+        onChannel.add(camera);
+    }
+
+    // Returns true when no cameras are left.
+    public synchronized boolean leave(IpCameraHandler camera) {
+        cameras.remove(camera);
+        for (List<IpCameraHandler> onChannel : byChannel.values()) {
+            onChannel.remove(camera);
+        }
+        return cameras.isEmpty();
+    }
+
+    // Only this camera opens the alarm stream, the others would get the same bytes again.
+    public boolean isStreamOwner(IpCameraHandler camera) {
+        return !cameras.isEmpty() && cameras.get(0) == camera;
+    }
+
+    // An empty or "0" channel is an event for the whole NVR and goes to every camera.
+    public void dispatch(String channelId, Object event) {
+        if (channelId.isEmpty() || "0".equals(channelId)) {
+            for (IpCameraHandler camera : cameras) {
+                camera.nvrEventReceived(event);
+            }
+            return;
+        }
+        List<IpCameraHandler> onChannel = byChannel.get(channelId);
+        if (onChannel != null) {
+            for (IpCameraHandler camera : onChannel) {
+                camera.nvrEventReceived(event);
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+/**
+ * The {@link SharedStreamServer} is one HTTP server on a port that is shared by every camera and group using that
+ * SERVER_PORT. Requests for /{thingID}/ipcamera.mjpeg and so on are routed to that things handler. When only one thing
+ * uses the port the paths without the thingID keep working as before.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class SharedStreamServer {
+    public interface HandlerFactory {
+        // Called once per connection, the handler is given the request with the /{thingID} removed from the uri.
+        ChannelHandler newStreamServerHandler();
+    }
+
+    private static class Route {
+        final String thingId;
+        final HandlerFactory handlerFactory;
+        // Connections routed to this thing, so they can be closed when the thing goes offline.
+        final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+
+        Route(String thingId, HandlerFactory handlerFactory) {
+            this.thingId = thingId;
+            this.handlerFactory = handlerFactory;
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final int port;
+    private final Map<String, Route> routes = new ConcurrentHashMap<String, Route>(4);
+    private final ChannelGroup allChannels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+
+    public SharedStreamServer(IpCameraEventLoops eventLoops, int port) throws InterruptedException {
+        this.port = port;
+        ServerBootstrap serverBootstrap = new ServerBootstrap();
+        serverBootstrap.group(eventLoops.getEventLoopGroup());
+        serverBootstrap.channel(eventLoops.getServerChannelClass());
+        // IP "0.0.0.0" will bind the server to all network connections//
+        serverBootstrap.localAddress(new InetSocketAddress("0.0.0.0", port));
+        serverBootstrap.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, MjpegFanout.WATER_MARK);
+        serverBootstrap.childHandler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel socketChannel) throws Exception {
+                allChannels.add(socketChannel);
+                socketChannel.pipeline().addLast("idleStateHandler", new IdleStateHandler(0, 25, 0));
+                socketChannel.pipeline().addLast("HttpServerCodec", new HttpServerCodec());
+                socketChannel.pipeline().addLast("ChunkedWriteHandler", new ChunkedWriteHandler());
+                socketChannel.pipeline().addLast("streamServerRouter", new StreamServerRouter());
+            }
+        });
+        Channel serverChannel = serverBootstrap.bind().sync().channel();
+        allChannels.add(serverChannel);
+        logger.debug("Shared stream server has started on port {} for all NIC's.", port);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void addRoute(String thingId, HandlerFactory handlerFactory) {
+        routes.put(thingId, new Route(thingId, handlerFactory));
+    }
+
+    // Returns true when no things are left using this server.
+    public boolean removeRoute(String thingId) {
+        Route route = routes.remove(thingId);
+        if (route != null) {
+            route.channels.close();
+        }
+        return routes.isEmpty();
+    }
+
+    public void close() {
+        allChannels.close();
+    }
+
+    private @Nullable Route onlyRoute() {
+        if (routes.size() != 1) {
+            return null;
+        }
+        Iterator<Route> iterator = routes.values().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    // Looks at the first request on a connection and adds the stream server handler of the right thing after itself.
+    // Stays in the pipeline so every later request on a kept alive connection also has the /{thingID} looked up and
+    // removed. Removing the handler closes the connection, so it can not be swapped for another thing's handler and a
+    // request for a different thing closes the connection instead, the browser then sends it again on a new one.
+    private class StreamServerRouter extends ChannelInboundHandlerAdapter {
+        private @Nullable Route connectedRoute = null;
+        private boolean closing = false;
+
+        @Override
+        public void channelRead(@Nullable ChannelHandlerContext ctx, @Nullable Object msg) throws Exception {
+            if (ctx == null || msg == null) {
+                return;
+            }
+            Route connected = connectedRoute;
+            if (!(msg instanceof HttpRequest)) {
+                if (connected != null && !closing) {
+                    ctx.fireChannelRead(msg);
+                } else {
+                    // Body of a request that was refused.
+                    ReferenceCountUtil.release(msg);
+                }
+                return;
+            }
+            if (closing) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            HttpRequest httpRequest = (HttpRequest) msg;
+            String uri = httpRequest.uri();
+            Route route = null;
+            int slash = uri.indexOf('/', 1);
+            int query = uri.indexOf('?');
+            if (slash > 1 && (query < 0 || slash < query)) {
+                route = routes.get(uri.substring(1, slash));
+                if (route != null) {
+                    httpRequest.setUri(uri.substring(slash));
+                }
+            }
+            if (route == null) {
+                route = connected != null ? connected : onlyRoute();
+            }
+            if (route == null) {
+                logger.debug("Shared stream server on port {} has no camera for the request {}", port, uri);
+                ReferenceCountUtil.release(msg);
+                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                        HttpResponseStatus.NOT_FOUND);
+                response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+                response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+            if (connected == null) {
+                route.channels.add(ctx.channel());
+                connectedRoute = route;
+                ctx.pipeline().addAfter(ctx.name(), "streamServerHandler",
+                        route.handlerFactory.newStreamServerHandler());
+            } else if (route != connected) {
+                logger.debug("Closing a kept alive connection to {} as it asked for {}", connected.thingId, uri);
+                closing = true;
+                ReferenceCountUtil.release(msg);
+                ctx.close();
+                return;
+            }
+            ctx.fireChannelRead(msg);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+/**
+ * The {@link SnapshotFrame} is one immutable JPEG from a camera that is shared by every reader. Each reader takes a
+ * reference with {@link #acquire} or a retained slice of the data, so one frame can go to many streams without a copy.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class SnapshotFrame {
+    public static final SnapshotFrame EMPTY = new SnapshotFrame(Unpooled.EMPTY_BUFFER, 0);
+    private final ByteBuf data;
+    private final long timestamp;
+    private final long sequence;
+    private final int length;
+    // starts with the reference held by whoever published the frame.
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+
+    // Takes ownership of the data, it is released when the last reference to the frame is released.
+    public SnapshotFrame(ByteBuf data, long sequence) {
+        this.data = data;
+        this.sequence = sequence;
+        this.length = data.readableBytes();
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    // Fails if the frame has already been released, so a reader never touches recycled memory.
+    public boolean tryRetain() {
+        if (this == EMPTY) {
+            return true;
+        }
+        for (;;) {
+            int current = refCnt.get();
+            if (current == 0) {
+                return false;
+            }
+            if (refCnt.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if (this == EMPTY) {
+            return;
+        }
+        if (refCnt.decrementAndGet() == 0) {
+            data.release();
+        }
+    }
+
+    // Returns a slice the caller owns and must release, or null if the frame has already been released.
+    public @Nullable ByteBuf retainedSlice() {
+        if (!tryRetain()) {
+            return null;
+        }
+        try {
+            return data.retainedSlice(data.readerIndex(), length);
+        } finally {
+            release();
+        }
+    }
+
+    // Only for the places that need a byte[] such as a RawType, all other readers should use a slice.
+    public byte[] getBytes() {
+        if (!tryRetain()) {
+            return new byte[0];
+        }
+        try {
+            return ByteBufUtil.getBytes(data, data.readerIndex(), length);
+        } finally {
+            release();
+        }
+    }
+
+    // Returns the frame currently held by the reference with a reference taken that the caller must release.
+    public static SnapshotFrame acquire(AtomicReference<SnapshotFrame> reference) {
+        for (;;) {
+            SnapshotFrame frame = reference.get();
+            if (frame.tryRetain()) {
+                return frame;
+            }
+            // The frame was replaced and released between get() and tryRetain(), so fetch the new one.
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import static org.openhab.binding.ipcamera.IpCameraBindingConstants.CHANNEL_FFMPEG_MOTION_ALARM;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.ipcamera.handler.IpCameraHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * The {@link SnapshotMotionDetector} finds motion in the snapshots the binding already fetches, so a camera does not
+ * need ffmpeg to decode its RTSP stream. Each JPEG is decoded on the image threads with subsampling straight into a
+ * small image, which is reduced to the average brightness of each cell in a grid. Every cell keeps its own background
+ * and noise level, and motion is when enough of the cells that are not masked move away from their background.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class SnapshotMotionDetector {
+    public static final int COLUMNS = 16;
+    public static final int ROWS = 12;
+    private static final int CELLS = COLUMNS * ROWS;
+    // Pixels decoded across each cell, more only costs time as they are averaged.
+    private static final int SAMPLES_PER_CELL = 8;
+    // Brightness is 0 to 255, smaller changes are JPEG noise.
+    private static final double MIN_DIFFERENCE = 12;
+    private static final double NOISE_MULTIPLIER = 3;
+    private static final double BACKGROUND_RATE = 0.1;
+    // Something that stops moving slowly becomes background.
+    private static final double CHANGED_BACKGROUND_RATE = 0.01;
+    // Most of the picture changing at once is the lights or IR switching, not motion.
+    private static final double LIGHTING_CHANGE = 0.8;
+    private static final int QUIET_FRAMES_TO_CLEAR = 2;
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final IpCameraHandler ipCameraHandler;
+    private final Executor executor;
+    private final double[] background = new double[CELLS];
+    private final double[] noise = new double[CELLS];
+    private final double[] luma = new double[CELLS];
+    private final int[] samples = new int[CELLS];
+    private boolean[] masked = new boolean[CELLS];
+    private int unmaskedCells = CELLS;
+    private double threshold = 0.16;
+    private boolean hasBackground = false;
+    private boolean motion = false;
+    private int quietFrames = 0;
+    // Only one snapshot is decoded at a time, others that arrive meanwhile are skipped.
+    private boolean busy = false;
+
+    public SnapshotMotionDetector(IpCameraHandler ipCameraHandler, Executor executor) {
+        this.ipCameraHandler = ipCameraHandler;
+        this.executor = executor;
+    }
+
+    // The part of the unmasked cells that have to change for motion, 0.16 is 16%.
+    public synchronized void setThreshold(double threshold) {
+        this.threshold = Math.max(threshold, 1.0 / CELLS);
+    }
+
+    // Cells given as column:row ranges that are ignored, "0-15:0,3:5-7" masks the top row and part of column 3.
+    public synchronized void setMask(String mask) {
+        boolean[] newMask = new boolean[CELLS];
+        for (String area : mask.split(",")) {
+            area = area.trim();
+            if (area.isEmpty()) {
+                continue;
+            }
+            String[] parts = area.split(":");
+            int[] columns = parseRange(parts[0], COLUMNS);
+            int[] rows = parts.length == 2 ? parseRange(parts[1], ROWS) : new int[] { 0, ROWS - 1 };
+            if (parts.length > 2 || columns.length == 0 || rows.length == 0) {
+                logger.warn("The MOTION_MASK area {} is not understood, it needs to be like 0-3:0-2", area);
+                continue;
+            }
+            for (int row = rows[0]; row <= rows[1]; row++) {
+                for (int column = columns[0]; column <= columns[1]; column++) {
+                    newMask[row * COLUMNS + column] = true;
+                }
+            }
+        }
+        int unmasked = 0;
+        for (boolean cellMasked : newMask) {
+            if (!cellMasked) {
+                unmasked++;
+            }
+        }
+        masked = newMask;
+        unmaskedCells = unmasked;
+    }
+
+    // Returns {first, last}, or an empty array if the range is not valid.
+    private static int[] parseRange(String range, int size) {
+        String[] ends = range.trim().split("-");
+        try {
+            int first = Integer.parseInt(ends[0].trim());
+            int last = ends.length == 2 ? Integer.parseInt(ends[1].trim()) : first;
+            if (ends.length > 2 || first < 0 || last >= size || first > last) {
+                return new int[0];
+            }
+            return new int[] { first, last };
+        } catch (NumberFormatException e) {
+            return new int[0];
+        }
+    }
+
+    public void offer(SnapshotFrame frame) {
+        synchronized (this) {
+            if (busy || frame.isEmpty() || !frame.tryRetain()) {
+                return;
+            }
+            busy = true;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        analyse(frame);
+                    } finally {
+                        done(frame);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            done(frame);
+        }
+    }
+
+    private void done(SnapshotFrame frame) {
+        frame.release();
+        synchronized (this) {
+            busy = false;
+        }
+    }
+
+    // Forgets the background, so the next snapshot starts a new one.
+    public synchronized void reset() {
+        hasBackground = false;
+        quietFrames = 0;
+        if (motion) {
+            motion = false;
+            ipCameraHandler.noMotionDetected(CHANNEL_FFMPEG_MOTION_ALARM);
+        }
+    }
+
+    private void analyse(SnapshotFrame frame) {
+        ByteBuf jpeg = frame.retainedSlice();
+        if (jpeg == null) {
+            return;
+        }
+        @Nullable
+        BufferedImage image;
+        try {
+            image = JpegImages.decodeSubsampled(jpeg, COLUMNS * SAMPLES_PER_CELL, ROWS * SAMPLES_PER_CELL);
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Snapshot could not be decoded for motion detection:{}", e.getMessage());
+            return;
+        } finally {
+            jpeg.release();
+        }
+        if (image != null) {
+            compare(image);
+        }
+    }
+
+    private synchronized void compare(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (width < COLUMNS || height < ROWS) {
+            return;
+        }
+        int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+        for (int i = 0; i < CELLS; i++) {
+            luma[i] = 0;
+            samples[i] = 0;
+        }
+        for (int y = 0; y < height; y++) {
+            int rowOffset = (y * ROWS / height) * COLUMNS;
+            for (int x = 0; x < width; x++) {
+                int pixel = rgb[y * width + x];
+                // BT.601 luma in fixed point.
+                int value = (((pixel >> 16) & 0xFF) * 77 + ((pixel >> 8) & 0xFF) * 150 + (pixel & 0xFF) * 29) >> 8;
+                int cell = rowOffset + x * COLUMNS / width;
+                luma[cell] += value;
+                samples[cell]++;
+            }
+        }
+        for (int i = 0; i < CELLS; i++) {
+            luma[i] /= Math.max(1, samples[i]);
+        }
+        if (!hasBackground) {
+            for (int i = 0; i < CELLS; i++) {
+                background[i] = luma[i];
+                noise[i] = 0;
+            }
+            hasBackground = true;
+            return;
+        }
+        int changed = 0;
+        for (int i = 0; i < CELLS; i++) {
+            double difference = Math.abs(luma[i] - background[i]);
+            boolean cellChanged = difference > Math.max(MIN_DIFFERENCE, noise[i] * NOISE_MULTIPLIER);
+            if (cellChanged && !masked[i]) {
+                changed++;
+            }
+            double rate = cellChanged ? CHANGED_BACKGROUND_RATE : BACKGROUND_RATE;
+            background[i] += (luma[i] - background[i]) * rate;
+            if (!cellChanged) {
+                noise[i] += (difference - noise[i]) * BACKGROUND_RATE;
+            }
+        }
+        if (unmaskedCells == 0) {
+            return;
+        }
+        double changedPart = (double) changed / unmaskedCells;
+        if (changedPart >= LIGHTING_CHANGE) {
+            logger.debug("Most of the picture changed at once, starting a new motion background.");
+            hasBackground = false;
+            return;
+        }
+        if (changedPart >= threshold) {
+            quietFrames = 0;
+            if (!motion) {
+                logger.debug("Snapshot motion found in {} of {} cells.", changed, unmaskedCells);
+            }
+            motion = true;
+            ipCameraHandler.motionDetected(CHANNEL_FFMPEG_MOTION_ALARM);
+        } else if (motion && ++quietFrames >= QUIET_FRAMES_TO_CLEAR) {
+            motion = false;
+            ipCameraHandler.noMotionDetected(CHANNEL_FFMPEG_MOTION_ALARM);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * The {@link SnapshotRingBuffer} keeps the last few snapshots for GIF creation. The frames stay in the pooled buffers
+ * they arrived in and the ring only holds a reference to each one, so adding a frame is never blocked by a GIF being
+ * created from the frames already stored.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class SnapshotRingBuffer {
+    private static final Comparator<SnapshotFrame> OLDEST_FIRST = new Comparator<SnapshotFrame>() {
+        @Override
+        public int compare(SnapshotFrame first, SnapshotFrame second) {
+            return Long.compare(first.getSequence(), second.getSequence());
+        }
+    };
+    private final AtomicReferenceArray<@Nullable SnapshotFrame> slots;
+    private final AtomicLong writeIndex = new AtomicLong();
+
+    public SnapshotRingBuffer(int capacity) {
+        slots = new AtomicReferenceArray<@Nullable SnapshotFrame>(Math.max(1, capacity));
+    }
+
+    public int capacity() {
+        return slots.length();
+    }
+
+    // Takes its own reference to the frame, the oldest frame is released once the ring is full.
+    public void append(SnapshotFrame frame) {
+        if (frame.isEmpty() || !frame.tryRetain()) {
+            return;
+        }
+        int slot = (int) (writeIndex.getAndIncrement() % slots.length());
+        SnapshotFrame older = slots.getAndSet(slot, frame);
+        if (older != null) {
+            older.release();
+        }
+    }
+
+    // Returns the stored frames oldest first, each with a reference the caller must release. Frames added while this
+    // runs may or may not be included.
+    public List<SnapshotFrame> snapshot() {
+        List<SnapshotFrame> frames = new ArrayList<SnapshotFrame>(slots.length());
+        for (int i = 0; i < slots.length(); i++) {
+            SnapshotFrame frame = slots.get(i);
+            // A frame that was replaced and released before it could be retained is skipped.
+            if (frame != null && frame.tryRetain()) {
+                frames.add(frame);
+            }
+        }
+        Collections.sort(frames, OLDEST_FIRST);
+        return frames;
+    }
+
+    public static void releaseAll(List<SnapshotFrame> frames) {
+        for (SnapshotFrame frame : frames) {
+            frame.release();
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < slots.length(); i++) {
+            SnapshotFrame frame = slots.getAndSet(i, null);
+            if (frame != null) {
+                frame.release();
+            }
+        }
+    }
+}
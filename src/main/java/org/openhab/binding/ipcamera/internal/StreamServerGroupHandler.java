@@ -40,7 +40,6 @@ import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.QueryStringDecoder;
-import io.netty.handler.stream.ChunkedFile;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.util.ReferenceCountUtil;
@@ -62,6 +61,7 @@ public class StreamServerGroupHandler extends ChannelInboundHandlerAdapter {
     int recievedBytes = 0;
     int count = 0;
     boolean updateSnapshot = false;
+    private boolean handlingMosaicStream = false; // used to remove ctx from group when handler is removed.
 
     public StreamServerGroupHandler(IpCameraGroupHandler ipCameraGroupHandler) {
         this.ipCameraGroupHandler = ipCameraGroupHandler;
@@ -114,12 +114,19 @@ public class StreamServerGroupHandler extends ChannelInboundHandlerAdapter {
                             }
                             break;
                         case "/ipcamera.jpg":
-                            sendSnapshotImage(ctx, "image/jpg");
+                            if (ipCameraGroupHandler.mosaicEnabled && sendMosaicImage(ctx, httpRequest)) {
+                                break;
+                            }
+                            sendSnapshotImage(ctx, httpRequest, "image/jpg");
                             break;
                         case "/snapshots.mjpeg":
-                            logger.warn("snapshots.mjpeg is not yet implemented, use ipcamera.jpg or HLS.");
-                            // ipCameraGroupHandler.setupSnapshotStreaming(true, ctx, false);
-                            // handlingSnapshotStream = true;
+                            if (!ipCameraGroupHandler.mosaicEnabled) {
+                                logger.warn("snapshots.mjpeg needs MOSAIC to be ON, use ipcamera.jpg or HLS.");
+                                break;
+                            }
+                            sendMjpegFirstPacket(ctx);
+                            handlingMosaicStream = true;
+                            ipCameraGroupHandler.setupMosaicStreaming(true, ctx);
                             break;
                         case "/ipcamera.mjpeg":
                             logger.warn("ipcamera.mjpeg is not yet implemented, use ipcamera.jpg or HLS.");
@@ -134,15 +141,16 @@ public class StreamServerGroupHandler extends ChannelInboundHandlerAdapter {
                         default:
                             if (httpRequest.uri().contains(".ts")) {
                                 // String path = resolveIndexToPath(httpRequest.uri());
-                                sendFile(ctx, resolveIndexToPath(httpRequest.uri()) + httpRequest.uri().substring(2),
+                                sendFile(ctx, httpRequest,
+                                        resolveIndexToPath(httpRequest.uri()) + httpRequest.uri().substring(2),
                                         "video/MP2T");
                             } else if (httpRequest.uri().contains(".jpg")) {
                                 // Allow access to the preroll and postroll jpg files
-                                sendFile(ctx, httpRequest.uri(), "image/jpg");
+                                sendFile(ctx, httpRequest, httpRequest.uri(), "image/jpg");
                             } else if (httpRequest.uri().contains(".m4s")) {
-                                sendFile(ctx, httpRequest.uri(), "video/mp4");
+                                sendFile(ctx, httpRequest, httpRequest.uri(), "video/mp4");
                             } else if (httpRequest.uri().contains(".mp4")) {
-                                sendFile(ctx, httpRequest.uri(), "video/mp4");
+                                sendFile(ctx, httpRequest, httpRequest.uri(), "video/mp4");
                             }
                     }
                 }
@@ -152,43 +160,48 @@ public class StreamServerGroupHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
-    private void sendSnapshotImage(ChannelHandlerContext ctx, String contentType) throws IOException {
-        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-        if (ipCameraGroupHandler.cameraIndex >= ipCameraGroupHandler.cameraOrder.size()) {
-            logger.debug("WARN: Openhab may still be starting, or all cameras in the group are OFFLINE.");
-            return;
+    // Returns false if the first mosaic has not been made yet.
+    private boolean sendMosaicImage(ChannelHandlerContext ctx, HttpRequest request) {
+        SnapshotFrame frame = ipCameraGroupHandler.acquireMosaic();
+        ByteBuf mosaic = frame.retainedSlice();
+        frame.release();
+        if (mosaic == null) {
+            return false;
         }
-        ipCameraGroupHandler.cameraOrder.get(ipCameraGroupHandler.cameraIndex).lockCurrentSnapshot.lock();
-        ByteBuf snapshotData = Unpooled
-                .copiedBuffer(ipCameraGroupHandler.cameraOrder.get(ipCameraGroupHandler.cameraIndex).currentSnapshot);
-        ipCameraGroupHandler.cameraOrder.get(ipCameraGroupHandler.cameraIndex).lockCurrentSnapshot.unlock();
-        response.headers().add(HttpHeaderNames.CONTENT_TYPE, contentType);
-        response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
-        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
-        response.headers().add(HttpHeaderNames.CONTENT_LENGTH, snapshotData.readableBytes());
-        response.headers().add("Access-Control-Allow-Origin", "*");
-        response.headers().add("Access-Control-Expose-Headers", "*");
-        ctx.channel().write(response);
-        ctx.channel().write(snapshotData);
-        ByteBuf footerBbuf = Unpooled.copiedBuffer("\r\n", 0, 2, StandardCharsets.UTF_8);
-        ctx.channel().writeAndFlush(footerBbuf);
+        HttpFileSender.sendBuffer(ctx, request, mosaic, "image/jpg");
+        return true;
     }
 
-    private void sendFile(ChannelHandlerContext ctx, String fileUri, String contentType) throws IOException {
-        logger.debug("file is :{}", fileUri);
-        File file = new File(fileUri);
-        ChunkedFile chunkedFile = new ChunkedFile(file);
-        ByteBuf footerBbuf = Unpooled.copiedBuffer("\r\n", 0, 2, StandardCharsets.UTF_8);
+    private void sendMjpegFirstPacket(ChannelHandlerContext ctx) {
         HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-        response.headers().add(HttpHeaderNames.CONTENT_TYPE, contentType);
+        response.headers().add(HttpHeaderNames.CONTENT_TYPE, MjpegFramer.CONTENT_TYPE);
         response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
         response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
-        response.headers().add(HttpHeaderNames.CONTENT_LENGTH, chunkedFile.length());
         response.headers().add("Access-Control-Allow-Origin", "*");
         response.headers().add("Access-Control-Expose-Headers", "*");
-        ctx.channel().write(response);
-        ctx.channel().write(chunkedFile);
-        ctx.channel().writeAndFlush(footerBbuf);
+        ctx.channel().writeAndFlush(response);
+    }
+
+    private void sendSnapshotImage(ChannelHandlerContext ctx, HttpRequest request, String contentType) {
+        if (ipCameraGroupHandler.cameraIndex >= ipCameraGroupHandler.cameraOrder.size()) {
+            logger.debug("WARN: Openhab may still be starting, or all cameras in the group are OFFLINE.");
+            HttpFileSender.sendStatus(ctx, request, HttpResponseStatus.SERVICE_UNAVAILABLE);
+            return;
+        }
+        ByteBuf snapshotData = ipCameraGroupHandler.cameraOrder.get(ipCameraGroupHandler.cameraIndex)
+                .getSnapshotSlice();
+        if (snapshotData == null) {
+            logger.debug("WARN: The camera in the group has no snapshot in ram to send yet.");
+            HttpFileSender.sendStatus(ctx, request, HttpResponseStatus.SERVICE_UNAVAILABLE);
+            return;
+        }
+        HttpFileSender.sendBuffer(ctx, request, snapshotData, contentType);
+    }
+
+    private void sendFile(ChannelHandlerContext ctx, HttpRequest request, String fileUri, String contentType)
+            throws IOException {
+        logger.debug("file is :{}", fileUri);
+        HttpFileSender.sendFile(ctx, request, new File(fileUri), contentType);
     }
 
     private void sendString(ChannelHandlerContext ctx, String contents, String contentType) throws IOException {
@@ -246,5 +259,24 @@ public class StreamServerGroupHandler extends ChannelInboundHandlerAdapter {
 
     @Override
     public void handlerRemoved(@Nullable ChannelHandlerContext ctx) {
+        if (ctx == null) {
+            return;
+        }
+        if (handlingMosaicStream) {
+            handlingMosaicStream = false;
+            ipCameraGroupHandler.setupMosaicStreaming(false, ctx);
+        }
+        MjpegFanout.release(ctx.channel());
+    }
+
+    @Override
+    public void channelWritabilityChanged(@Nullable ChannelHandlerContext ctx) throws Exception {
+        if (ctx == null) {
+            return;
+        }
+        if (handlingMosaicStream) {
+            MjpegFanout.sendPending(ctx.channel());
+        }
+        super.channelWritabilityChanged(ctx);
     }
 }
@@ -19,7 +19,10 @@ import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
@@ -28,20 +31,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
-import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.HttpContent;
-import io.netty.handler.codec.http.HttpHeaderNames;
-import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpRequest;
-import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
-import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.http.QueryStringDecoder;
-import io.netty.handler.stream.ChunkedFile;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.util.ReferenceCountUtil;
@@ -55,11 +52,13 @@ import io.netty.util.ReferenceCountUtil;
 
 @NonNullByDefault
 public class StreamServerHandler extends ChannelInboundHandlerAdapter {
+    // How long a request for a HLS file waits for ffmpeg to finish it before trying the disk.
+    private static final int HLS_WAIT_SECONDS = 8;
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private IpCameraHandler ipCameraHandler;
     private boolean handlingMjpeg = false; // used to remove ctx from group when handler is removed.
     private boolean handlingSnapshotStream = false; // used to remove ctx from group when handler is removed.
-    private byte[] incomingJpeg = new byte[0];
+    private @Nullable CompositeByteBuf incomingJpeg = null;
     String whiteList = "";
     int recievedBytes = 0;
     int count = 0;
@@ -103,36 +102,30 @@ public class StreamServerHandler extends ChannelInboundHandlerAdapter {
                     QueryStringDecoder queryStringDecoder = new QueryStringDecoder(httpRequest.uri());
                     switch (queryStringDecoder.path()) {
                         case "/ipcamera.m3u8":
-                            if (ipCameraHandler.ffmpegHLS != null) {
-                                if (!ipCameraHandler.ffmpegHLS.getIsAlive()) {
-                                    if (ipCameraHandler.ffmpegHLS != null) {
-                                        ipCameraHandler.ffmpegHLS.startConverting();
-                                    }
-                                }
-                            } else {
+                            if (ipCameraHandler.ffmpegHLS == null || !ipCameraHandler.ffmpegHLS.getIsAlive()) {
                                 ipCameraHandler.setupFfmpegFormat("HLS");
                             }
                             if (ipCameraHandler.ffmpegHLS != null) {
                                 ipCameraHandler.ffmpegHLS.setKeepAlive(8);
                             }
-                            sendFile(ctx, httpRequest.uri(), "application/x-mpegurl");
-                            ctx.close();
+                            sendHlsFile(ctx, httpRequest, queryStringDecoder.path(), "application/x-mpegurl");
                             return;
                         case "/ipcamera.mpd":
-                            sendFile(ctx, httpRequest.uri(), "application/dash+xml");
+                            sendFile(ctx, httpRequest, queryStringDecoder.path(), "application/dash+xml");
                             return;
                         case "/ipcamera.gif":
-                            sendFile(ctx, httpRequest.uri(), "image/gif");
+                            sendFile(ctx, httpRequest, queryStringDecoder.path(), "image/gif");
                             return;
                         case "/ipcamera.jpg":
                             if (!ipCameraHandler.snapshotPolling && ipCameraHandler.snapshotUri != "") {
                                 ipCameraHandler.sendHttpGET(ipCameraHandler.snapshotUri);
                             }
-                            if (ipCameraHandler.currentSnapshot.length == 1) {
-                                logger.warn("ipcamera.jpg was requested but there is no jpg in ram to send.");
-                                return;
+                            int width = thumbnailWidth(queryStringDecoder);
+                            if (width > 0) {
+                                sendThumbnail(ctx, httpRequest, width);
+                            } else {
+                                sendSnapshotImage(ctx, httpRequest, "image/jpg");
                             }
-                            sendSnapshotImage(ctx, "image/jpg");
                             return;
                         case "/snapshots.mjpeg":
                             handlingSnapshotStream = true;
@@ -152,21 +145,18 @@ public class StreamServerHandler extends ChannelInboundHandlerAdapter {
                             instar.alarmTriggered(httpRequest.uri().toString());
                             ctx.close();
                             return;
-                        case "/ipcamera0.ts":
-                            // TimeUnit.MILLISECONDS.sleep(10);// Give time for file to be created.
                         default:
                             if (httpRequest.uri().contains(".ts")) {
-                                TimeUnit.MILLISECONDS.sleep(75);// Give time for file to be created.
-                                sendFile(ctx, queryStringDecoder.path(), "video/MP2T");
+                                sendHlsFile(ctx, httpRequest, queryStringDecoder.path(), "video/MP2T");
                             } else if (httpRequest.uri().contains(".gif")) {
-                                sendFile(ctx, queryStringDecoder.path(), "image/gif");
+                                sendFile(ctx, httpRequest, queryStringDecoder.path(), "image/gif");
                             } else if (httpRequest.uri().contains(".jpg")) {
                                 // Allow access to the preroll and postroll jpg files
-                                sendFile(ctx, queryStringDecoder.path(), "image/jpg");
+                                sendJpg(ctx, httpRequest, queryStringDecoder.path());
                             } else if (httpRequest.uri().contains(".m4s")) {
-                                sendFile(ctx, queryStringDecoder.path(), "video/mp4");
+                                sendHlsFile(ctx, httpRequest, queryStringDecoder.path(), "video/mp4");
                             } else if (httpRequest.uri().contains(".mp4")) {
-                                sendFile(ctx, queryStringDecoder.path(), "video/mp4");
+                                sendFile(ctx, httpRequest, queryStringDecoder.path(), "video/mp4");
                             }
                             return;
                     }
@@ -188,33 +178,27 @@ public class StreamServerHandler extends ChannelInboundHandlerAdapter {
             }
             if (msg instanceof HttpContent) {
                 content = (HttpContent) msg;
-                int index = 0;
-
-                if (recievedBytes == 0) {
-                    incomingJpeg = new byte[content.content().capacity()];
-                } else {
-                    byte[] temp = incomingJpeg;
-                    incomingJpeg = new byte[recievedBytes + content.content().capacity()];
-
-                    for (; index < temp.length; index++) {
-                        incomingJpeg[index] = temp[index];
-                    }
+                CompositeByteBuf jpeg = incomingJpeg;
+                if (jpeg == null) {
+                    jpeg = ctx.alloc().compositeBuffer(64);
+                    incomingJpeg = jpeg;
                 }
-                for (int i = 0; i < content.content().capacity(); i++) {
-                    incomingJpeg[index++] = content.content().getByte(i);
+                if (content.content().isReadable()) {
+                    jpeg.addComponent(true, content.content().retain());
                 }
-                recievedBytes = incomingJpeg.length;
+                recievedBytes = jpeg.readableBytes();
                 if (content instanceof LastHttpContent) {
+                    incomingJpeg = null;
                     if (updateSnapshot) {
-                        ipCameraHandler.lockCurrentSnapshot.lock();
-                        ipCameraHandler.currentSnapshot = incomingJpeg;
-                        ipCameraHandler.lockCurrentSnapshot.unlock();
-                        ipCameraHandler.processSnapshot();
+                        ipCameraHandler.publishSnapshot(jpeg);
                     } else if (onvifEvent) {
-                        ipCameraHandler.onvifCamera.eventRecieved(new String(incomingJpeg, StandardCharsets.UTF_8));
+                        ipCameraHandler.onvifCamera.eventRecieved(jpeg.toString(StandardCharsets.UTF_8));
+                        jpeg.release();
                     } else { // handles the snapshots that make up mjpeg from rtsp to ffmpeg conversions.
                         if (recievedBytes > 1000) {
-                            ipCameraHandler.sendMjpegFrame(incomingJpeg, ipCameraHandler.mjpegChannelGroup);
+                            ipCameraHandler.sendMjpegFrame(jpeg, ipCameraHandler.mjpegChannelGroup);
+                        } else {
+                            jpeg.release();
                         }
                     }
                     recievedBytes = 0;
@@ -225,37 +209,130 @@ public class StreamServerHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
-    private void sendSnapshotImage(ChannelHandlerContext ctx, String contentType) throws IOException {
-        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-        ipCameraHandler.lockCurrentSnapshot.lock();
-        ByteBuf snapshotData = Unpooled.copiedBuffer(ipCameraHandler.currentSnapshot);
-        ipCameraHandler.lockCurrentSnapshot.unlock();
-        response.headers().add(HttpHeaderNames.CONTENT_TYPE, contentType);
-        response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
-        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
-        response.headers().add(HttpHeaderNames.CONTENT_LENGTH, snapshotData.readableBytes());
-        response.headers().add("Access-Control-Allow-Origin", "*");
-        response.headers().add("Access-Control-Expose-Headers", "*");
-        ctx.channel().write(response);
-        ctx.channel().write(snapshotData);
-        ByteBuf footerBbuf = Unpooled.copiedBuffer("\r\n", 0, 2, StandardCharsets.UTF_8);
-        ctx.channel().writeAndFlush(footerBbuf);
+    private void sendSnapshotImage(ChannelHandlerContext ctx, HttpRequest request, String contentType) {
+        ByteBuf snapshotData = ipCameraHandler.getSnapshotSlice();
+        if (snapshotData == null) {
+            logger.warn("ipcamera.jpg was requested but there is no jpg in ram to send.");
+            HttpFileSender.sendStatus(ctx, request, HttpResponseStatus.SERVICE_UNAVAILABLE);
+            return;
+        }
+        HttpFileSender.sendBuffer(ctx, request, snapshotData, contentType);
+    }
+
+    // Returns the width asked for with ?w=320 rounded up to a cached width, or 0 for the full size snapshot.
+    private int thumbnailWidth(QueryStringDecoder queryStringDecoder) {
+        List<String> widths = queryStringDecoder.parameters().get("w");
+        if (widths == null || widths.isEmpty()) {
+            return 0;
+        }
+        try {
+            return ThumbnailCache.snapWidth(Integer.parseInt(widths.get(0)));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Falls back to the full size snapshot if it is already smaller or the thumbnail could not be made.
+    private void sendThumbnail(ChannelHandlerContext ctx, HttpRequest request, int width) {
+        SnapshotFrame frame = ipCameraHandler.acquireSnapshot();
+        try {
+            if (frame.isEmpty()) {
+                logger.warn("ipcamera.jpg was requested but there is no jpg in ram to send.");
+                HttpFileSender.sendStatus(ctx, request, HttpResponseStatus.SERVICE_UNAVAILABLE);
+                return;
+            }
+            ipCameraHandler.getThumbnailCache().get(frame, width, new ThumbnailCache.Callback() {
+                @Override
+                public void thumbnailReady(@Nullable ByteBuf jpeg) {
+                    if (jpeg != null) {
+                        HttpFileSender.sendBuffer(ctx, request, jpeg, "image/jpg");
+                        return;
+                    }
+                    sendSnapshotImage(ctx, request, "image/jpg");
+                }
+            });
+        } finally {
+            frame.release();
+        }
+    }
+
+    // The snapshots the last GIF was made from are kept in ram, any other jpg is read from the output folder.
+    private void sendJpg(ChannelHandlerContext ctx, HttpRequest request, String fileUri) throws IOException {
+        if (fileUri.startsWith("/snapshot") && fileUri.endsWith(".jpg")) {
+            try {
+                int index = Integer.parseInt(fileUri.substring(9, fileUri.length() - 4));
+                ByteBuf jpeg = ipCameraHandler.getGifSnapshot(index);
+                if (jpeg != null) {
+                    HttpFileSender.sendBuffer(ctx, request, jpeg, "image/jpg");
+                    return;
+                }
+            } catch (NumberFormatException e) {
+            }
+        }
+        sendFile(ctx, request, fileUri, "image/jpg");
     }
 
-    private void sendFile(ChannelHandlerContext ctx, String fileUri, String contentType) throws IOException {
+    private void sendFile(ChannelHandlerContext ctx, HttpRequest request, String fileUri, String contentType)
+            throws IOException {
         File file = new File(ipCameraHandler.config.get(CONFIG_FFMPEG_OUTPUT).toString() + fileUri);
-        ChunkedFile chunkedFile = new ChunkedFile(file);
-        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-        response.headers().add(HttpHeaderNames.CONTENT_TYPE, contentType);
-        response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
-        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
-        response.headers().add(HttpHeaderNames.CONTENT_LENGTH, chunkedFile.length());
-        response.headers().add("Access-Control-Allow-Origin", "*");
-        response.headers().add("Access-Control-Expose-Headers", "*");
-        ctx.channel().write(response);
-        ctx.channel().write(chunkedFile);
-        ByteBuf footerBbuf = Unpooled.copiedBuffer("\r\n", 0, 2, StandardCharsets.UTF_8);
-        ctx.channel().writeAndFlush(footerBbuf);
+        HttpFileSender.sendFile(ctx, request, file, contentType);
+    }
+
+    // HLS files are served from memory, a file ffmpeg has not finished yet is sent as soon as it is listed.
+    private void sendHlsFile(ChannelHandlerContext ctx, HttpRequest request, String fileUri, String contentType)
+            throws IOException {
+        HlsSegmentCache cache = ipCameraHandler.hlsSegmentCache;
+        if (cache == null) {
+            sendFile(ctx, request, fileUri, contentType);
+            return;
+        }
+        String name = fileUri.substring(1);
+        ByteBuf cached = cache.get(name);
+        if (cached != null) {
+            HttpFileSender.sendBuffer(ctx, request, cached, contentType);
+            return;
+        }
+        AtomicBoolean answered = new AtomicBoolean(false);
+        Runnable ready = new Runnable() {
+            @Override
+            public void run() {
+                if (answered.compareAndSet(false, true)) {
+                    ctx.executor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            ByteBuf file = cache.get(name);
+                            if (file != null) {
+                                HttpFileSender.sendBuffer(ctx, request, file, contentType);
+                            } else {
+                                sendFileFromDisk(ctx, request, fileUri, contentType);
+                            }
+                        }
+                    });
+                }
+            }
+        };
+        ScheduledFuture<?> timeout = ctx.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (answered.compareAndSet(false, true)) {
+                    cache.cancel(name, ready);
+                    sendFileFromDisk(ctx, request, fileUri, contentType);
+                }
+            }
+        }, HLS_WAIT_SECONDS, TimeUnit.SECONDS);
+        cache.whenReady(name, ready);
+        if (answered.get()) {
+            timeout.cancel(false);
+        }
+    }
+
+    private void sendFileFromDisk(ChannelHandlerContext ctx, HttpRequest request, String fileUri, String contentType) {
+        try {
+            sendFile(ctx, request, fileUri, contentType);
+        } catch (IOException e) {
+            logger.info("IpCameras file server could not find the requested file {}:{}", fileUri, e.getMessage());
+            ctx.close();
+        }
     }
 
     @Override
@@ -304,11 +381,33 @@ public class StreamServerHandler extends ChannelInboundHandlerAdapter {
         }
         ctx.close();
         // logger.trace("Closing a StreamServerHandler.");
+        CompositeByteBuf jpeg = incomingJpeg;
+        if (jpeg != null) {
+            jpeg.release();
+            incomingJpeg = null;
+        }
         if (handlingMjpeg) {
             ipCameraHandler.setupMjpegStreaming(false, ctx);
         } else if (handlingSnapshotStream) {
             handlingSnapshotStream = false;
             ipCameraHandler.setupSnapshotStreaming(false, ctx, false);
         }
+        MjpegFanout.release(ctx.channel());
+        long dropped = MjpegFanout.getDroppedFrames(ctx.channel());
+        if (dropped > 0) {
+            logger.debug("Mjpeg viewer at {} skipped {} frames as it could not keep up.", ctx.channel().remoteAddress(),
+                    dropped);
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(@Nullable ChannelHandlerContext ctx) throws Exception {
+        if (ctx == null) {
+            return;
+        }
+        if (handlingMjpeg || handlingSnapshotStream) {
+            MjpegFanout.sendPending(ctx.channel());
+        }
+        super.channelWritabilityChanged(ctx);
     }
 }
@@ -0,0 +1,240 @@
+/**
+ * Copyright (c) 2010-2020 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * The {@link ThumbnailCache} keeps smaller copies of the current snapshot for requests like /ipcamera.jpg?w=320. Each
+ * width is made once per snapshot on the image threads, no matter how many browsers ask for it, and is dropped when a
+ * newer snapshot arrives.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+@NonNullByDefault
+public class ThumbnailCache {
+    public interface Callback {
+        // Called on an image thread, or straight away if it is cached. The caller owns the jpeg, null if it failed.
+        void thumbnailReady(@Nullable ByteBuf jpeg);
+    }
+
+    // Widths asked for are rounded up to one of these, so the cache never has to drop a width to make room and a
+    // client asking for a new width each time can not keep the image threads busy.
+    private static final int[] WIDTHS = { 160, 320, 480, 640, 960, 1280 };
+    private static final float QUALITY = 0.8f;
+
+    private static class Thumbnail {
+        final long sequence;
+        // Null until it has been made.
+        @Nullable
+        ByteBuf jpeg = null;
+        final List<Callback> waiting = new ArrayList<Callback>(2);
+
+        Thumbnail(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Executor executor;
+    // Guarded by synchronized, keyed by width.
+    private final Map<Integer, Thumbnail> thumbnails = new HashMap<Integer, Thumbnail>(WIDTHS.length);
+    private long latestSequence = 0;
+
+    public ThumbnailCache(Executor executor) {
+        this.executor = executor;
+    }
+
+    // Returns the smallest of the WIDTHS that is at least the width asked for, or 0 for the full size snapshot.
+    public static int snapWidth(int width) {
+        if (width <= 0) {
+            return 0;
+        }
+        for (int allowed : WIDTHS) {
+            if (width <= allowed) {
+                return allowed;
+            }
+        }
+        return 0;
+    }
+
+    // The width must be one returned by snapWidth.
+    public void get(SnapshotFrame frame, int width, Callback callback) {
+        ByteBuf original = frame.retainedSlice();
+        if (original == null) {
+            callback.thumbnailReady(null);
+            return;
+        }
+        int sourceWidth = JpegImages.readWidth(original);
+        if (sourceWidth > 0 && width >= sourceWidth) {
+            // Already small enough, so it is sent without being decoded.
+            callback.thumbnailReady(original);
+            return;
+        }
+        original.release();
+        ByteBuf cached = null;
+        Thumbnail thumbnail;
+        synchronized (this) {
+            thumbnail = thumbnails.get(width);
+            if (thumbnail != null && thumbnail.sequence == frame.getSequence()) {
+                ByteBuf jpeg = thumbnail.jpeg;
+                if (jpeg == null) {
+                    thumbnail.waiting.add(callback);
+                    return;
+                }
+                cached = jpeg.retainedDuplicate();
+            } else {
+                if (!frame.tryRetain()) {
+                    thumbnail = null;
+                } else {
+                    if (thumbnail != null) {
+                        release(thumbnail);
+                    }
+                    thumbnail = new Thumbnail(frame.getSequence());
+                    thumbnail.waiting.add(callback);
+                    thumbnails.put(width, thumbnail);
+                }
+            }
+        }
+        if (cached != null) {
+            callback.thumbnailReady(cached);
+            return;
+        }
+        if (thumbnail == null) {
+            callback.thumbnailReady(null);
+            return;
+        }
+        final Thumbnail making = thumbnail;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ByteBuf jpeg = null;
+                    try {
+                        jpeg = makeThumbnail(frame, width);
+                    } finally {
+                        frame.release();
+                        finished(width, making, jpeg);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The image threads are busy, the full size snapshot is sent instead.
+            frame.release();
+            finished(width, making, null);
+        }
+    }
+
+    // Called for each new snapshot, the thumbnails of older ones are no longer needed.
+    public void invalidate(long sequence) {
+        List<ByteBuf> stale = new ArrayList<ByteBuf>(WIDTHS.length);
+        synchronized (this) {
+            latestSequence = sequence;
+            Iterator<Thumbnail> iterator = thumbnails.values().iterator();
+            while (iterator.hasNext()) {
+                Thumbnail thumbnail = iterator.next();
+                ByteBuf jpeg = thumbnail.jpeg;
+                // One that is still being made is removed when it is finished.
+                if (thumbnail.sequence < sequence && jpeg != null) {
+                    stale.add(jpeg);
+                    iterator.remove();
+                }
+            }
+        }
+        for (ByteBuf jpeg : stale) {
+            jpeg.release();
+        }
+    }
+
+    public synchronized void clear() {
+        for (Thumbnail thumbnail : thumbnails.values()) {
+            release(thumbnail);
+        }
+        thumbnails.clear();
+    }
+
+    private @Nullable ByteBuf makeThumbnail(SnapshotFrame frame, int width) {
+        ByteBuf snapshot = frame.retainedSlice();
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            // One more than the width, so only a snapshot that is already small enough is decoded at full size.
+            BufferedImage image = JpegImages.decodeSubsampled(snapshot, width + 1, 1);
+            if (image == null) {
+                return null;
+            }
+            if (image.getWidth() <= width) {
+                return snapshot.retain();
+            }
+            int height = Math.max(1, (int) ((long) image.getHeight() * width / image.getWidth()));
+            return JpegImages.encode(JpegImages.scale(image, width, height), QUALITY);
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Could not make a {} wide thumbnail:{}", width, e.getMessage());
+            return null;
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    private void finished(int width, Thumbnail thumbnail, @Nullable ByteBuf jpeg) {
+        List<Callback> callbacks;
+        List<@Nullable ByteBuf> copies = new ArrayList<@Nullable ByteBuf>(2);
+        boolean keep;
+        synchronized (this) {
+            callbacks = new ArrayList<Callback>(thumbnail.waiting);
+            thumbnail.waiting.clear();
+            // Retained while locked, as a newer snapshot may release the cached one at any time after.
+            for (int i = 0; i < callbacks.size(); i++) {
+                copies.add(jpeg == null ? null : jpeg.retainedDuplicate());
+            }
+            keep = jpeg != null && thumbnails.get(width) == thumbnail && thumbnail.sequence >= latestSequence;
+            if (keep) {
+                thumbnail.jpeg = jpeg;
+            } else if (thumbnails.get(width) == thumbnail) {
+                thumbnails.remove(width);
+            }
+        }
+        if (!keep && jpeg != null) {
+            jpeg.release();
+        }
+        for (int i = 0; i < callbacks.size(); i++) {
+            callbacks.get(i).thumbnailReady(copies.get(i));
+        }
+    }
+
+    private void release(Thumbnail thumbnail) {
+        ByteBuf jpeg = thumbnail.jpeg;
+        if (jpeg != null) {
+            jpeg.release();
+            thumbnail.jpeg = null;
+        }
+    }
+}
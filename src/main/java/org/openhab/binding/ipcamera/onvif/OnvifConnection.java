@@ -26,7 +26,6 @@ import java.util.Date;
 import java.util.LinkedList;
 import java.util.Random;
 import java.util.TimeZone;
-import java.util.concurrent.TimeUnit;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
@@ -42,10 +41,9 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpClientCodec;
@@ -54,6 +52,7 @@ import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.GlobalEventExecutor;
 
 /**
  * The {@link OnvifConnection} is a WIP and is currently not used. Will eventually remove the need for an external ONVIF
@@ -67,7 +66,8 @@ import io.netty.handler.timeout.IdleStateHandler;
 public class OnvifConnection {
     @Nullable
     Bootstrap bootstrap;
-    EventLoopGroup mainEventLoopGroup = new NioEventLoopGroup();
+    // Uses the cameras event loop, so only the channels opened here are closed on disconnect.
+    final ChannelGroup onvifChannels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
     String ipAddress = "";
     String user = "";
     String password = "";
@@ -181,8 +181,8 @@ public class OnvifConnection {
             case "GetSystemDateAndTime":
                 return "<GetSystemDateAndTime xmlns=\"http://www.onvif.org/ver10/device/wsdl\"/>";
             case "Subscribe":
-                return "<Subscribe xmlns=\"http://docs.oasis-open.org/wsn/b-2/\"><ConsumerReference><Address>http://"
-                        + ipCameraHandler.hostIp + ":" + ipCameraHandler.serverPort
+                return "<Subscribe xmlns=\"http://docs.oasis-open.org/wsn/b-2/\"><ConsumerReference><Address>"
+                        + ipCameraHandler.getServerUrl(ipCameraHandler.hostIp)
                         + "/OnvifEvent</Address></ConsumerReference></Subscribe>";
             case "Unsubscribe":
                 return "<Unsubscribe xmlns=\"http://docs.oasis-open.org/wsn/b-2/\"></Unsubscribe>";
@@ -440,8 +440,8 @@ public class OnvifConnection {
     public void sendOnvifRequest(HttpRequest request) {
         if (bootstrap == null) {
             bootstrap = new Bootstrap();
-            bootstrap.group(mainEventLoopGroup);
-            bootstrap.channel(NioSocketChannel.class);
+            bootstrap.group(ipCameraHandler.getCameraEventLoop());
+            bootstrap.channel(ipCameraHandler.getEventLoops().getSocketChannelClass());
             bootstrap.option(ChannelOption.SO_KEEPALIVE, true);
             bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000);
             bootstrap.option(ChannelOption.SO_SNDBUF, 1024 * 8);
@@ -466,6 +466,7 @@ public class OnvifConnection {
                 }
                 if (future.isDone() && future.isSuccess()) {
                     Channel ch = future.channel();
+                    onvifChannels.add(ch);
                     ch.writeAndFlush(request);
                 } else { // an error occured
                     logger.debug("Camera is not reachable on ONVIF port:{} or the port may be wrong.", onvifPort);
@@ -797,16 +798,7 @@ public class OnvifConnection {
         isConnected = false;
         presetTokens.clear();
         mediaProfileTokens.clear();
-        if (!mainEventLoopGroup.isShutdown()) {
-            try {
-                mainEventLoopGroup.awaitTermination(3, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                logger.info("Onvif was not shutdown correctly due to being interrupted");
-            } finally {
-                // logger.debug("Onvif Shutdown");
-                mainEventLoopGroup = new NioEventLoopGroup();
-                bootstrap = null;
-            }
-        }
+        onvifChannels.close();
+        bootstrap = null;
     }
 }
@@ -43,8 +43,8 @@ import io.netty.channel.ChannelFactory;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.DatagramPacket;
 import io.netty.channel.socket.InternetProtocolFamily;
@@ -62,9 +62,11 @@ public class OnvifDiscovery {
     IpCameraDiscoveryService ipCameraDiscoveryService;
     private final Logger logger = LoggerFactory.getLogger(OnvifDiscovery.class);
     public ArrayList<DatagramPacket> listOfReplys = new ArrayList<DatagramPacket>(10);
+    private final EventLoopGroup eventLoopGroup;
 
-    public OnvifDiscovery(IpCameraDiscoveryService ipCameraDiscoveryService) {
+    public OnvifDiscovery(IpCameraDiscoveryService ipCameraDiscoveryService, EventLoopGroup eventLoopGroup) {
         this.ipCameraDiscoveryService = ipCameraDiscoveryService;
+        this.eventLoopGroup = eventLoopGroup;
     }
 
     public @Nullable NetworkInterface getLocalNIF() {
@@ -223,7 +225,7 @@ public class OnvifDiscovery {
         NetworkInterface networkInterface = getLocalNIF();
         DatagramChannel datagramChannel;
 
-        Bootstrap bootstrap = new Bootstrap().group(new NioEventLoopGroup())
+        Bootstrap bootstrap = new Bootstrap().group(eventLoopGroup)
                 .channelFactory(new ChannelFactory<NioDatagramChannel>() {
                     @Override
                     public NioDatagramChannel newChannel() {
@@ -259,6 +261,5 @@ public class OnvifDiscovery {
         datagramChannel.close();
         chFuture.awaitUninterruptibly(6000);
         processCameraReplys();
-        bootstrap.config().group().shutdownGracefully();
     }
 }